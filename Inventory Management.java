@@ -2,6 +2,17 @@
 Design an inventory management system with queuing for incoming requests.
 */
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 enum Category {
     ELECTRONICS,
@@ -14,7 +25,7 @@ enum Category {
 class Item {
     private String id;
     private String name;
-    private Integer quantity;
+    private volatile Integer quantity;
     private Double price;
     private Category category;
     
@@ -51,11 +62,13 @@ class Item {
     }
 }
 
+// Items may be added and queried from several processor shards at once; changes to one item's
+// quantity always come from the single shard that owns it
 class Inventory {
     private Map<String, Item> items;
     
     public Inventory() {
-        items = new HashMap<>();
+        items = new ConcurrentHashMap<>();
     }
     
     public void addItem(Item item) {
@@ -63,23 +76,33 @@ class Inventory {
     }
     
     public Boolean addItemQuantity(String itemId, Integer quantity) {
-        if(items.containsKey(itemId)) {
-            Item item = items.get(itemId);
-            item.setQuantity(item.getQuantity() + quantity);
-            return true;
-        }
-        return false;
+        boolean[] applied = applyQuantity(itemId, new int[] {quantity});
+        return applied != null && applied[0];
     }
     
     public boolean removeItemQuantity(String itemId, int quantity) {
-        if (items.containsKey(itemId)) {
-            Item item = items.get(itemId);
-            if (item.getQuantity() >= quantity) {
-                item.setQuantity(item.getQuantity() - quantity);
-                return true;
+        boolean[] applied = applyQuantity(itemId, new int[] {-quantity});
+        return applied != null && applied[0];
+    }
+    
+    // Applies quantity changes to one item in order and writes the item once. An addition always
+    // succeeds; a removal only if the stock left after the earlier changes covers it. Returns which
+    // changes succeeded, or null if there is no such item.
+    public boolean[] applyQuantity(String itemId, int[] deltas) {
+        Item item = items.get(itemId);
+        if (item == null) {
+            return null;
+        }
+        boolean[] applied = new boolean[deltas.length];
+        int quantity = item.getQuantity();
+        for (int i = 0; i < deltas.length; i++) {
+            if (deltas[i] >= 0 || quantity >= -deltas[i]) {
+                quantity += deltas[i];
+                applied[i] = true;
             }
         }
-        return false;
+        item.setQuantity(quantity);
+        return applied;
     }
     
     public Item getItem(String itemId) {
@@ -110,6 +133,23 @@ class NotificationService {
 
 interface InventoryCommand {
     void execute();
+    
+    // The item this command touches, used to route it to a processor shard; commands for no
+    // particular item go to the first shard
+    default String getItemId() {
+        return null;
+    }
+}
+
+// A quantity change the batching processor can fold with others for the same item and apply in one
+// write instead of executing on its own
+interface QuantityCommand extends InventoryCommand {
+    Inventory getInventory();
+    
+    NotificationService getNotificationService();
+    
+    // Positive to add stock, negative to remove it, as passed to Inventory.applyQuantity
+    int getDelta();
 }
 
 class AddItemCommand implements InventoryCommand {
@@ -128,9 +168,14 @@ class AddItemCommand implements InventoryCommand {
         inventory.addItem(item);
         notificationService.notifyAdmin("Item added to inventory: " + item.getName());
     }
+    
+    @Override
+    public String getItemId() {
+        return item.getId();
+    }
 }
 
-class AddItemQuantityCommand implements InventoryCommand {
+class AddItemQuantityCommand implements QuantityCommand {
     private String itemId;
     private int quantity;
     private Inventory inventory;
@@ -152,9 +197,29 @@ class AddItemQuantityCommand implements InventoryCommand {
             notificationService.notifyAdmin("Failed to add quantity for item: " + itemId);
         }
     }
+    
+    @Override
+    public String getItemId() {
+        return itemId;
+    }
+    
+    @Override
+    public Inventory getInventory() {
+        return inventory;
+    }
+    
+    @Override
+    public NotificationService getNotificationService() {
+        return notificationService;
+    }
+    
+    @Override
+    public int getDelta() {
+        return quantity;
+    }
 }
 
-class RemoveItemQuantityCommand implements InventoryCommand {
+class RemoveItemQuantityCommand implements QuantityCommand {
     private String itemId;
     private int quantity;
     private Inventory inventory;
@@ -176,57 +241,287 @@ class RemoveItemQuantityCommand implements InventoryCommand {
             notificationService.notifyAdmin("Failed to remove item (Insufficient stock): " + itemId);
         }
     }
+    
+    @Override
+    public String getItemId() {
+        return itemId;
+    }
+    
+    @Override
+    public Inventory getInventory() {
+        return inventory;
+    }
+    
+    @Override
+    public NotificationService getNotificationService() {
+        return notificationService;
+    }
+    
+    @Override
+    public int getDelta() {
+        return -quantity;
+    }
+}
+
+// Collects the quantity changes of one batch per item, applies each item's changes with a single
+// Inventory.applyQuantity call and sends one summary per notification service instead of one
+// notification per command
+class QuantityBatch {
+    
+    private static class ItemDelta {
+        private final String itemId;
+        private final Inventory inventory;
+        private final NotificationService notificationService;
+        private int[] deltas = new int[8];
+        private int commands;
+        private int netChange;
+        private int failed;
+        
+        ItemDelta(QuantityCommand command) {
+            this.itemId = command.getItemId();
+            this.inventory = command.getInventory();
+            this.notificationService = command.getNotificationService();
+        }
+    }
+    
+    private final Map<String, ItemDelta> pending = new LinkedHashMap<>();
+    private final List<ItemDelta> applied = new ArrayList<>();
+    private int commandCount;
+    
+    public void add(QuantityCommand command) {
+        ItemDelta delta = pending.get(command.getItemId());
+        if (delta == null || delta.inventory != command.getInventory()) {
+            if (delta != null) {
+                apply();
+            }
+            delta = new ItemDelta(command);
+            pending.put(delta.itemId, delta);
+        }
+        if (delta.commands == delta.deltas.length) {
+            delta.deltas = Arrays.copyOf(delta.deltas, delta.commands * 2);
+        }
+        delta.deltas[delta.commands++] = command.getDelta();
+        commandCount++;
+    }
+    
+    // Writes the collected changes; called before any other command runs so it sees them. Changes
+    // are dropped from the batch even if writing them throws, so they are never applied twice.
+    public void apply() {
+        try {
+            for (ItemDelta delta : pending.values()) {
+                int[] deltas = Arrays.copyOf(delta.deltas, delta.commands);
+                boolean[] succeeded = delta.inventory.applyQuantity(delta.itemId, deltas);
+                for (int i = 0; i < deltas.length; i++) {
+                    if (succeeded != null && succeeded[i]) {
+                        delta.netChange += deltas[i];
+                    } else {
+                        delta.failed++;
+                    }
+                }
+                applied.add(delta);
+            }
+        } finally {
+            pending.clear();
+        }
+    }
+    
+    // Applies what is pending and sends the summaries; the batch is empty afterwards even if a
+    // notification service throws
+    public void finish() {
+        try {
+            apply();
+            if (applied.isEmpty()) {
+                return;
+            }
+            Map<NotificationService, StringBuilder> summaries = new LinkedHashMap<>();
+            for (ItemDelta delta : applied) {
+                StringBuilder summary = summaries.computeIfAbsent(delta.notificationService,
+                        service -> new StringBuilder(commandCount + " quantity updates applied:"));
+                summary.append(' ').append(delta.itemId).append(' ').append(delta.netChange >= 0 ? "+" : "").append(delta.netChange);
+                if (delta.failed > 0) {
+                    summary.append(" (").append(delta.failed).append(" of ").append(delta.commands).append(" failed)");
+                }
+            }
+            summaries.forEach((service, summary) -> service.notifyAdmin(summary.toString()));
+        } finally {
+            applied.clear();
+            commandCount = 0;
+        }
+    }
 }
 
 class InventoryProcessor extends Thread {
+    // Queued by stopProcessing; everything ahead of it still runs
+    private static final InventoryCommand STOP = () -> {};
+    
     private final BlockingQueue<InventoryCommand> commandQueue;
-    private volatile boolean running = true;
+    private final int batchSize;
     
     public InventoryProcessor(BlockingQueue<InventoryCommand> commandQueue) {
+        this(commandQueue, 1);
+    }
+    
+    // With a batchSize above 1, up to that many queued commands are taken at once and their quantity
+    // changes are coalesced per item
+    public InventoryProcessor(BlockingQueue<InventoryCommand> commandQueue, int batchSize) {
         this.commandQueue = commandQueue;
+        this.batchSize = batchSize;
     }
     
     @Override
     public void run() {
-        while(running) {
+        if (batchSize > 1) {
+            runBatched();
+            return;
+        }
+        while (true) {
             try {
                 InventoryCommand command = commandQueue.take();
+                if (command == STOP) {
+                    return;
+                }
                 command.execute();
             } catch (InterruptedException e) {
-                if (!running) {
-                    Thread.currentThread().interrupt();
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                System.err.println("Failed to execute command: " + e.getMessage());
+            }
+        }
+    }
+    
+    private void runBatched() {
+        List<InventoryCommand> commands = new ArrayList<>(batchSize);
+        QuantityBatch batch = new QuantityBatch();
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                commands.add(commandQueue.take());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                // every drained command has run by now; finishing again is a no-op unless the last
+                // round's summary failed, and whatever is still queued is reported, not dropped silently
+                finish(batch);
+                System.err.println("Processor interrupted with " + commandQueue.size() + " commands still queued");
+                return;
+            }
+            commandQueue.drainTo(commands, batchSize - 1);
+            for (InventoryCommand command : commands) {
+                if (command == STOP) {
+                    stopping = true;
+                    break;
+                }
+                try {
+                    if (command instanceof QuantityCommand) {
+                        batch.add((QuantityCommand) command);
+                    } else {
+                        batch.apply();
+                        command.execute();
+                    }
+                } catch (RuntimeException e) {
+                    System.err.println("Failed to execute command: " + e.getMessage());
                 }
             }
+            finish(batch);
+            commands.clear();
+        }
+    }
+    
+    // A failing notification service must not end the thread, or every later command for this
+    // shard's items would sit in its queue forever
+    private static void finish(QuantityBatch batch) {
+        try {
+            batch.finish();
+        } catch (RuntimeException e) {
+            System.err.println("Failed to finish batch: " + e.getMessage());
         }
     }
     
     public void stopProcessing() {
-        running = false;
-        this.interrupt(); 
+        commandQueue.add(STOP);
     }
 }
 
+// Commands are routed to one of several processors by item ID, so commands for the same item run
+// in submission order on one thread while different items run in parallel
 class InventoryManager {
-    private final LinkedBlockingQueue<InventoryCommand> commandQueue;
-    private final InventoryProcessor processor;
+    private final List<LinkedBlockingQueue<InventoryCommand>> commandQueues;
+    private final List<InventoryProcessor> processors;
+    // addCommand holds the read lock while it checks `stopped` and enqueues, so no command can
+    // land behind a processor's stop marker
+    private final ReentrantReadWriteLock stopLock;
+    private boolean stopped;
     
     public InventoryManager() {
-        this.commandQueue = new LinkedBlockingQueue<>();
-        this.processor = new InventoryProcessor(commandQueue);
-        this.processor.start();
+        this(1);
+    }
+    
+    public InventoryManager(int shards) {
+        this(shards, 1);
+    }
+    
+    public InventoryManager(int shards, int batchSize) {
+        this.commandQueues = new ArrayList<>();
+        this.processors = new ArrayList<>();
+        this.stopLock = new ReentrantReadWriteLock();
+        for (int i = 0; i < shards; i++) {
+            LinkedBlockingQueue<InventoryCommand> commandQueue = new LinkedBlockingQueue<>();
+            InventoryProcessor processor = new InventoryProcessor(commandQueue, batchSize);
+            commandQueues.add(commandQueue);
+            processors.add(processor);
+            processor.start();
+        }
     }
     
     public void addCommand(InventoryCommand command) {
+        stopLock.readLock().lock();
         try {
-            commandQueue.put(command);
+            if (stopped) {
+                System.err.println("Failed to add command to the queue: processing has stopped");
+                return;
+            }
+            commandQueues.get(shardFor(command.getItemId())).put(command);
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             System.err.println("Failed to add command to the queue: " + e.getMessage());
+        } finally {
+            stopLock.readLock().unlock();
+        }
+    }
+    
+    private int shardFor(String itemId) {
+        if (itemId == null) {
+            return 0;
         }
+        int hash = itemId.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), commandQueues.size());
     }
     
+    public int getShardCount() {
+        return processors.size();
+    }
+    
+    // Stops accepting commands, lets every queued command run and waits for the processors to exit
     public void stopProcessing() {
-        processor.stopProcessing();
+        stopLock.writeLock().lock();
+        try {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+            for (InventoryProcessor processor : processors) {
+                processor.stopProcessing();
+            }
+        } finally {
+            stopLock.writeLock().unlock();
+        }
+        try {
+            for (InventoryProcessor processor : processors) {
+                processor.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 }
 
@@ -266,3 +561,76 @@ public class Main {
         inventory.getItemsByCategory(Category.GROCERIES).forEach((id, item) -> System.out.println(item.getName()));
     }
 }
+
+// Runs the same restock and sale workload through 1, 2, 4, ... shards, one command at a time and
+// batched, and checks that every item ends up with the quantity a sequential run would give it
+class InventoryThroughputTest {
+    
+    static class CountingNotificationService extends NotificationService {
+        private final LongAdder sent = new LongAdder();
+        
+        @Override
+        public void notifyUser(String userId, String message) {
+            sent.increment();
+        }
+        
+        @Override
+        public void notifyAdmin(String message) {
+            sent.increment();
+        }
+    }
+    
+    public static void main(String[] args) {
+        int commandCount = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int maxShards = Math.max(4, Runtime.getRuntime().availableProcessors());
+        for (int shards = 1; shards <= maxShards; shards *= 2) {
+            run(shards, 1, commandCount);
+            run(shards, 256, commandCount);
+        }
+    }
+    
+    private static void run(int shards, int batchSize, int commandCount) {
+        // a restock burst concentrated on a few hundred items
+        int itemCount = 200;
+        Inventory inventory = new Inventory();
+        CountingNotificationService notificationService = new CountingNotificationService();
+        InventoryManager manager = new InventoryManager(shards, batchSize);
+        for (int i = 0; i < itemCount; i++) {
+            manager.addCommand(new AddItemCommand(new Item("I" + i, "Item " + i, 0, 1.0, Category.GROCERIES), inventory, notificationService));
+        }
+        
+        long start = System.nanoTime();
+        for (int c = 0; c < commandCount; c++) {
+            String itemId = "I" + (c / 8 % itemCount);
+            // every third command sells one of the two units restocked just before it
+            if (c % 3 == 2) {
+                manager.addCommand(new RemoveItemQuantityCommand(itemId, 1, inventory, notificationService));
+            } else {
+                manager.addCommand(new AddItemQuantityCommand(itemId, 1, inventory, notificationService));
+            }
+        }
+        manager.stopProcessing();
+        long elapsed = System.nanoTime() - start;
+        long notifications = notificationService.sent.sum() - itemCount;
+        
+        int[] expected = new int[itemCount];
+        for (int c = 0; c < commandCount; c++) {
+            int item = c / 8 % itemCount;
+            if (c % 3 == 2) {
+                if (expected[item] >= 1) {
+                    expected[item]--;
+                }
+            } else {
+                expected[item]++;
+            }
+        }
+        int mismatches = 0;
+        for (int i = 0; i < itemCount; i++) {
+            if (inventory.getItem("I" + i).getQuantity() != expected[i]) {
+                mismatches++;
+            }
+        }
+        System.out.println("Shards: " + shards + ", batch size: " + batchSize + ", commands: " + commandCount + ", "
+                + (long) (commandCount / (elapsed / 1e9)) + " commands/s, notifications: " + notifications + ", mismatched items: " + mismatches);
+    }
+}
@@ -1,5 +1,21 @@
+import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
 import java.lang.Thread;
 
 enum VehicleType {
@@ -51,40 +67,70 @@ class Truck extends Vehicle {
     } 
 }
 
+// Safe to share between gates: the occupying vehicle is claimed and released with CAS
 class ParkingSpot {
+    // stands in for the vehicle while the spot is set aside for a reservation
+    private static final Vehicle HELD = new Vehicle("", null) {};
+    
     private String id;
     private ParkingSpotType type;
-    private Vehicle vehicle;
-    private Boolean isAvailable;
+    private final AtomicReference<Vehicle> vehicle = new AtomicReference<>();
+    private ParkingFloor floor;
     
     public ParkingSpot(String id, ParkingSpotType type) {
         this.id = id;
         this.type = type;
-        this.isAvailable = true;
     }
     
     public Boolean isAvailable() {
-        return isAvailable;
+        return vehicle.get() == null;
     }
     
     public Boolean canPark(Vehicle vehicle) {
-        return (type == ParkingSpotType.COMPACT && vehicle.getVehicleType() == VehicleType.CAR) 
-            || (type == ParkingSpotType.BIKE && vehicle.getVehicleType() == VehicleType.BIKE)
-            || (type == ParkingSpotType.LARGE && vehicle.getVehicleType() == VehicleType.TRUCK);
+        return type == spotTypeFor(vehicle.getVehicleType());
     }
     
-    public Boolean park(Vehicle vehicle) {
-        if(isAvailable && canPark(vehicle)) {
-            this.vehicle = vehicle;
-            this.isAvailable = false;
-            return true;
+    // The only spot type each vehicle type may use; null if none
+    public static ParkingSpotType spotTypeFor(VehicleType vehicleType) {
+        switch (vehicleType) {
+            case CAR:
+                return ParkingSpotType.COMPACT;
+            case BIKE:
+                return ParkingSpotType.BIKE;
+            case TRUCK:
+                return ParkingSpotType.LARGE;
+            default:
+                return null;
         }
-        return false;
     }
     
-    public void unPark() {
-        vehicle = null;
-        isAvailable = true;
+    // At most one of several concurrent calls succeeds
+    public Boolean park(Vehicle vehicle) {
+        return canPark(vehicle) && this.vehicle.compareAndSet(null, vehicle);
+    }
+    
+    // False if the spot was already free, so a spot is released at most once per park
+    public boolean unPark() {
+        Vehicle current = vehicle.get();
+        return current != null && current != HELD && vehicle.compareAndSet(current, null);
+    }
+    
+    // Sets a free spot aside, so walk-ins can no longer claim it
+    boolean hold() {
+        return vehicle.compareAndSet(null, HELD);
+    }
+    
+    boolean unhold() {
+        return vehicle.compareAndSet(HELD, null);
+    }
+    
+    boolean isHeld() {
+        return vehicle.get() == HELD;
+    }
+    
+    // Parks the vehicle a held spot was set aside for
+    boolean parkHeld(Vehicle vehicle) {
+        return canPark(vehicle) && this.vehicle.compareAndSet(HELD, vehicle);
     }
     
     public String getId() {
@@ -94,84 +140,987 @@ class ParkingSpot {
     public ParkingSpotType getType() {
         return type;
     }
+    
+    public ParkingFloor getFloor() {
+        return floor;
+    }
+    
+    void setFloor(ParkingFloor floor) {
+        this.floor = floor;
+    }
 }
 
+// Gates may park and unpark concurrently; spots are expected to be added before the floor is in use
 class ParkingFloor {
     private String id;
-    private HashMap<ParkingSpotType, Integer> availableSpots;
+    private EnumMap<ParkingSpotType, AtomicInteger> availableSpots;
+    private EnumMap<ParkingSpotType, AtomicInteger> capacity;
+    // free spots set aside for a reservation; not counted in availableSpots
+    private EnumMap<ParkingSpotType, AtomicInteger> heldSpots;
     private HashMap<String, ParkingSpot> spots;
+    // free spots per type, so parking pops one instead of scanning the floor
+    private EnumMap<ParkingSpotType, ConcurrentLinkedDeque<ParkingSpot>> freeSpots;
+    private ParkingLot lot;
+    private int index;
     
     public ParkingFloor(String id) {
         this.id = id;
-        this.availableSpots = new HashMap<>();
+        this.availableSpots = new EnumMap<>(ParkingSpotType.class);
+        this.capacity = new EnumMap<>(ParkingSpotType.class);
+        this.heldSpots = new EnumMap<>(ParkingSpotType.class);
         this.spots = new HashMap<>();
+        this.freeSpots = new EnumMap<>(ParkingSpotType.class);
+        for (ParkingSpotType type : ParkingSpotType.values()) {
+            availableSpots.put(type, new AtomicInteger());
+            capacity.put(type, new AtomicInteger());
+            heldSpots.put(type, new AtomicInteger());
+            freeSpots.put(type, new ConcurrentLinkedDeque<>());
+        }
     }
     
     public void addSpot(ParkingSpot spot) {
         spots.put(spot.getId(), spot);
-        availableSpots.put(spot.getType(), availableSpots.getOrDefault(spot.getType(), 0)+1);
+        spot.setFloor(this);
+        capacity.get(spot.getType()).incrementAndGet();
+        if (lot != null) {
+            lot.indexSpot(spot);
+        }
+        if (spot.isAvailable()) {
+            release(spot);
+        }
     }
     
+    // A polled spot is only ours once its CAS succeeds, so two gates never get the same one; entries
+    // left stale by direct claims fail the CAS and are dropped. A spot reserved within the walk-in
+    // horizon is set aside by the lot instead, so walk-ins poll it once per hold, not once per park.
     public ParkingSpot findAndPark(Vehicle vehicle) {
-        for(ParkingSpot spot : spots.values()) {
-            if(spot.isAvailable() && spot.park(vehicle)) {
-                spot.park(vehicle);
-                availableSpots.put(spot.getType(), availableSpots.get(spot.getType()) - 1);
+        ParkingSpotType type = ParkingSpot.spotTypeFor(vehicle.getVehicleType());
+        if (type == null) {
+            return null;
+        }
+        ConcurrentLinkedDeque<ParkingSpot> free = freeSpots.get(type);
+        long now = System.currentTimeMillis();
+        ParkingSpot spot;
+        while ((spot = free.pollFirst()) != null) {
+            if ((lot == null || !lot.holdIfReserved(spot, now)) && spot.park(vehicle)) {
+                claimed(spot);
                 return spot;
             }
         }
         return null;
     }
     
+    // Claims a specific spot, e.g. the one a reservation is for, whether it is free or held; its pool
+    // entry goes stale and is dropped when polled, while gate-aware lots drop it from their gates
+    // right away. Retries while a concurrent hold or unhold moves the spot between the two.
+    boolean claim(ParkingSpot spot, Vehicle vehicle) {
+        if (!spot.canPark(vehicle)) {
+            return false;
+        }
+        while (spot.isAvailable() || spot.isHeld()) {
+            if (spot.park(vehicle)) {
+                claimed(spot);
+                return true;
+            }
+            // a held spot is already off the counter and out of the gates
+            if (spot.parkHeld(vehicle)) {
+                heldSpots.get(spot.getType()).decrementAndGet();
+                if (lot != null) {
+                    lot.getOccupancyHistory().recordPark(System.currentTimeMillis());
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    public void unpark(ParkingSpot spot) {
+        if (spot.unPark()) {
+            release(spot);
+            if (lot != null) {
+                lot.getOccupancyHistory().recordUnpark(System.currentTimeMillis());
+            }
+        }
+    }
+    
+    // The spot goes back into the pool before the counter moves, so the counter never promises a
+    // spot that cannot be polled yet. Gate-aware lots allocate from their gates instead, and only
+    // need the counter here.
+    void release(ParkingSpot spot) {
+        boolean gateAware = lot != null && lot.isGateAware();
+        if (!gateAware) {
+            freeSpots.get(spot.getType()).addFirst(spot);
+        }
+        if (availableSpots.get(spot.getType()).incrementAndGet() == 1 && lot != null) {
+            lot.floorHasCapacity(index, spot.getType());
+        }
+        if (gateAware) {
+            lot.spotReleased(spot);
+        }
+    }
+    
+    // Called for every successful claim of a free spot, from the pool, a gate or a reservation
+    void claimed(ParkingSpot spot) {
+        taken(spot);
+        if (lot != null) {
+            lot.getOccupancyHistory().recordPark(System.currentTimeMillis());
+        }
+    }
+    
+    // A free spot was claimed or held: it leaves the counter and, in gate-aware lots, every gate
+    void taken(ParkingSpot spot) {
+        availableSpots.get(spot.getType()).decrementAndGet();
+        if (lot != null && lot.isGateAware()) {
+            lot.spotClaimed(spot);
+        }
+    }
+    
+    void held(ParkingSpot spot) {
+        taken(spot);
+        heldSpots.get(spot.getType()).incrementAndGet();
+    }
+    
+    // The hold ended without its driver; the caller releases the spot
+    void unheld(ParkingSpot spot) {
+        heldSpots.get(spot.getType()).decrementAndGet();
+    }
+    
+    public int getAvailableSpots(ParkingSpotType type) {
+        return availableSpots.get(type).get();
+    }
+    
+    public int getHeldSpots(ParkingSpotType type) {
+        return heldSpots.get(type).get();
+    }
+    
+    public int getCapacity(ParkingSpotType type) {
+        return capacity.get(type).get();
+    }
+    
     public HashMap<String, ParkingSpot> getParkingSpots() {
         return spots;
     }
+    
+    public String getId() {
+        return id;
+    }
+    
+    void attach(ParkingLot lot, int index) {
+        this.lot = lot;
+        this.index = index;
+    }
 }
 
 class ParkingLot {
+    // A spot set aside for a reservation until `until`, when it is checked again
+    private static class Hold implements Comparable<Hold> {
+        final long until;
+        final ParkingSpot spot;
+        
+        Hold(long until, ParkingSpot spot) {
+            this.until = until;
+            this.spot = spot;
+        }
+        
+        @Override
+        public int compareTo(Hold other) {
+            int byEnd = Long.compare(until, other.until);
+            return byEnd != 0 ? byEnd : spot.getId().compareTo(other.spot.getId());
+        }
+    }
+    
     String name;
     List<ParkingFloor> floors;
+    // per spot type, the indexes of floors with at least one free spot of that type
+    EnumMap<ParkingSpotType, ConcurrentSkipListSet<Integer>> floorsWithCapacity;
+    Map<String, ParkingSpot> spotsById;
+    Map<String, EntryGate> gates;
+    // the first gate added, used by parkVehicle(vehicle)
+    volatile EntryGate defaultGate;
+    ReservationBook reservations;
+    // the current hold of each held spot, and every hold ordered by when it is checked again; whoever
+    // removes a hold from `holds` owns the spot's next step
+    Map<ParkingSpot, Hold> holds;
+    ConcurrentSkipListSet<Hold> holdsByEnd;
+    OccupancyBoard occupancyBoard;
+    OccupancyHistory occupancyHistory;
     
     public ParkingLot(String name) {
         this.name = name;
-        floors = new ArrayList<>();
+        floors = new CopyOnWriteArrayList<>();
+        spotsById = new ConcurrentHashMap<>();
+        gates = new ConcurrentHashMap<>();
+        reservations = new ReservationBook(ReservationBook.DEFAULT_WALK_IN_HORIZON);
+        holds = new ConcurrentHashMap<>();
+        holdsByEnd = new ConcurrentSkipListSet<>();
+        occupancyBoard = new OccupancyBoard(this, OccupancyBoard.DEFAULT_MAX_AGE);
+        occupancyHistory = new OccupancyHistory(OccupancyHistory.DEFAULT_MINUTES);
+        floorsWithCapacity = new EnumMap<>(ParkingSpotType.class);
+        for (ParkingSpotType type : ParkingSpotType.values()) {
+            floorsWithCapacity.put(type, new ConcurrentSkipListSet<>());
+        }
     }
     
     public void addFloor(ParkingFloor floor) {
+        floor.attach(this, floors.size());
         this.floors.add(floor);
+        for (ParkingSpot spot : floor.getParkingSpots().values()) {
+            indexSpot(spot);
+        }
+        for (ParkingSpotType type : ParkingSpotType.values()) {
+            if (floor.getAvailableSpots(type) > 0) {
+                floorHasCapacity(floors.size() - 1, type);
+            }
+        }
+    }
+    
+    void indexSpot(ParkingSpot spot) {
+        spotsById.put(spot.getId(), spot);
+        reservations.addSpot(spot);
+        for (EntryGate gate : gates.values()) {
+            gate.addSpot(spot);
+        }
+    }
+    
+    /**
+     * Switches the lot to gate-aware allocation, where each gate hands out its nearest free spot.
+     * Gates should be added before vehicles are parked. The first gate added is the one used for
+     * vehicles parked without naming a gate.
+     *
+     * @param gateId   the entry gate's ID
+     * @param distance distance from this gate to a spot, e.g. driving meters including ramps
+     */
+    public void addEntryGate(String gateId, ToIntFunction<ParkingSpot> distance) {
+        EntryGate gate = new EntryGate(gateId, distance);
+        for (ParkingSpot spot : spotsById.values()) {
+            gate.addSpot(spot);
+        }
+        gates.put(gateId, gate);
+        if (defaultGate == null) {
+            defaultGate = gate;
+        }
+    }
+    
+    public boolean isGateAware() {
+        return !gates.isEmpty();
+    }
+    
+    void spotReleased(ParkingSpot spot) {
+        for (EntryGate gate : gates.values()) {
+            gate.release(spot);
+        }
     }
     
+    // O(gates log n) per claim, so no gate keeps an entry for an occupied spot
+    void spotClaimed(ParkingSpot spot) {
+        for (EntryGate gate : gates.values()) {
+            gate.remove(spot);
+        }
+    }
+    
+    // Closest free spot of the vehicle's type to the gate, in O(log n)
+    public ParkingSpot parkVehicle(Vehicle vehicle, String gateId) {
+        EntryGate gate = gates.get(gateId);
+        if (gate == null) {
+            throw new IllegalArgumentException("Unknown entry gate: " + gateId);
+        }
+        return parkVehicle(vehicle, gate);
+    }
+    
+    private ParkingSpot parkVehicle(Vehicle vehicle, EntryGate gate) {
+        long now = System.currentTimeMillis();
+        endLapsedHolds(now);
+        ParkingSpot spot = gate.claimNearest(vehicle, this, now);
+        if (spot != null) {
+            spot.getFloor().claimed(spot);
+        }
+        return spot;
+    }
+    
+    void floorHasCapacity(int floorIndex, ParkingSpotType type) {
+        floorsWithCapacity.get(type).add(floorIndex);
+    }
+    
+    // Lowest floor with a free spot of the vehicle's type, as before, without visiting full floors.
+    // A floor is dropped from the candidates when it fills up and re-checked afterwards, in case a
+    // spot freed concurrently announced it just before the removal.
     public ParkingSpot parkVehicle(Vehicle vehicle) {
-        for (ParkingFloor floor : floors) {
+        EntryGate gate = defaultGate;
+        if (gate != null) {
+            return parkVehicle(vehicle, gate);
+        }
+        ParkingSpotType type = ParkingSpot.spotTypeFor(vehicle.getVehicleType());
+        if (type == null) {
+            return null;
+        }
+        endLapsedHolds(System.currentTimeMillis());
+        ConcurrentSkipListSet<Integer> candidates = floorsWithCapacity.get(type);
+        for (Integer floorIndex : candidates) {
+            ParkingFloor floor = floors.get(floorIndex);
             ParkingSpot spot = floor.findAndPark(vehicle);
+            if (floor.getAvailableSpots(type) == 0) {
+                candidates.remove(floorIndex);
+                if (floor.getAvailableSpots(type) > 0) {
+                    candidates.add(floorIndex);
+                }
+            }
             if (spot != null) {
                 return spot;
             }
         }
-        return null; 
+        return null;
+    }
+    
+    public void unparkVehicle(ParkingSpot spot) {
+        spot.getFloor().unpark(spot);
+    }
+    
+    // True if the spot is reserved within the walk-in horizon. A free one is then set aside: it
+    // leaves its floor's counter and the gates until the hold ends, so walk-ins stop polling it and
+    // a floor whose free spots are all held drops out of floorsWithCapacity.
+    boolean holdIfReserved(ParkingSpot spot, long now) {
+        if (!reservations.isHeldForWalkIn(spot, now)) {
+            return false;
+        }
+        if (spot.hold()) {
+            spot.getFloor().held(spot);
+            trackHold(spot, now);
+        }
+        return true;
+    }
+    
+    // Records when a held spot is checked again, or frees it once no reservation holds it. Checking
+    // again after the hold is visible catches a cancellation that looked for it just before.
+    private void trackHold(ParkingSpot spot, long now) {
+        while (spot.isHeld()) {
+            long heldUntil = reservations.heldUntil(spot, now);
+            if (heldUntil == ReservationBook.NOT_HELD) {
+                if (spot.unhold()) {
+                    spot.getFloor().unheld(spot);
+                    spot.getFloor().release(spot);
+                }
+                return;
+            }
+            Hold hold = new Hold(heldUntil, spot);
+            holds.put(spot, hold);
+            holdsByEnd.add(hold);
+            if (reservations.heldUntil(spot, now) != ReservationBook.NOT_HELD || !dropHold(hold)) {
+                return;
+            }
+        }
+    }
+    
+    private boolean dropHold(Hold hold) {
+        if (!holds.remove(hold.spot, hold)) {
+            return false;
+        }
+        holdsByEnd.remove(hold);
+        return true;
+    }
+    
+    // Called on every park, so a lapsed hold costs one look at the head of holdsByEnd until it ends
+    void endLapsedHolds(long now) {
+        for (Hold hold : holdsByEnd) {
+            if (hold.until > now) {
+                break;
+            }
+            holdsByEnd.remove(hold);
+            if (holds.remove(hold.spot, hold)) {
+                trackHold(hold.spot, now);
+            }
+        }
+    }
+    
+    // After a reservation was cancelled or used, frees its spot if it was held and nothing else
+    // holds it
+    void reservationRemoved(ParkingSpot spot) {
+        Hold hold = holds.get(spot);
+        if (hold != null && dropHold(hold)) {
+            trackHold(spot, System.currentTimeMillis());
+        }
     }
     
     public ParkingSpot getSpotById(String spotId) {
-        for (ParkingFloor floor : floors) {
-            for (ParkingSpot spot : floor.getParkingSpots().values()) {
-                if (spot.getId().equals(spotId)) {
-                    return spot;
+        return spotsById.get(spotId);
+    }
+    
+    public ReservationBook getReservations() {
+        return reservations;
+    }
+    
+    public OccupancyBoard getOccupancyBoard() {
+        return occupancyBoard;
+    }
+    
+    public OccupancyHistory getOccupancyHistory() {
+        return occupancyHistory;
+    }
+}
+
+// Free, held and total spots per floor and type at one moment; never changes once built. Held
+// spots are free but set aside for a reservation, so they are not counted as available.
+class OccupancySnapshot {
+    private long takenAt;
+    private String[] floorIds;
+    private int[][] available;
+    private int[][] held;
+    private int[][] capacity;
+    
+    OccupancySnapshot(long takenAt, String[] floorIds, int[][] available, int[][] held, int[][] capacity) {
+        this.takenAt = takenAt;
+        this.floorIds = floorIds;
+        this.available = available;
+        this.held = held;
+        this.capacity = capacity;
+    }
+    
+    public long getTakenAt() {
+        return takenAt;
+    }
+    
+    public int getFloorCount() {
+        return floorIds.length;
+    }
+    
+    public String getFloorId(int floorIndex) {
+        return floorIds[floorIndex];
+    }
+    
+    public int getAvailable(int floorIndex, ParkingSpotType type) {
+        return available[floorIndex][type.ordinal()];
+    }
+    
+    public int getHeld(int floorIndex, ParkingSpotType type) {
+        return held[floorIndex][type.ordinal()];
+    }
+    
+    public int getCapacity(int floorIndex, ParkingSpotType type) {
+        return capacity[floorIndex][type.ordinal()];
+    }
+    
+    public int getAvailable(ParkingSpotType type) {
+        return total(available, type);
+    }
+    
+    public int getHeld(ParkingSpotType type) {
+        return total(held, type);
+    }
+    
+    public int getCapacity(ParkingSpotType type) {
+        return total(capacity, type);
+    }
+    
+    private static int total(int[][] counts, ParkingSpotType type) {
+        int total = 0;
+        for (int[] floor : counts) {
+            total += floor[type.ordinal()];
+        }
+        return total;
+    }
+}
+
+// Live view for display boards. Gates only touch the floors' atomic counters; a reader that finds
+// the published snapshot older than maxAge reads those counters into a new one and publishes it.
+// Readers never lock, and concurrent rebuilds just race to publish equivalent snapshots.
+class OccupancyBoard {
+    static final long DEFAULT_MAX_AGE = 1000;
+    
+    private ParkingLot lot;
+    private long maxAge;
+    private volatile OccupancySnapshot current;
+    
+    public OccupancyBoard(ParkingLot lot, long maxAge) {
+        this.lot = lot;
+        this.maxAge = maxAge;
+    }
+    
+    public OccupancySnapshot current() {
+        OccupancySnapshot snapshot = current;
+        long now = System.currentTimeMillis();
+        if (snapshot == null || now - snapshot.getTakenAt() >= maxAge || snapshot.getFloorCount() != lot.floors.size()) {
+            snapshot = build(now);
+            current = snapshot;
+        }
+        return snapshot;
+    }
+    
+    private OccupancySnapshot build(long now) {
+        List<ParkingFloor> floors = new ArrayList<>(lot.floors);
+        ParkingSpotType[] types = ParkingSpotType.values();
+        String[] floorIds = new String[floors.size()];
+        int[][] available = new int[floors.size()][types.length];
+        int[][] held = new int[floors.size()][types.length];
+        int[][] capacity = new int[floors.size()][types.length];
+        for (int f = 0; f < floors.size(); f++) {
+            ParkingFloor floor = floors.get(f);
+            floorIds[f] = floor.getId();
+            for (ParkingSpotType type : types) {
+                available[f][type.ordinal()] = floor.getAvailableSpots(type);
+                held[f][type.ordinal()] = floor.getHeldSpots(type);
+                capacity[f][type.ordinal()] = floor.getCapacity(type);
+            }
+        }
+        return new OccupancySnapshot(now, floorIds, available, held, capacity);
+    }
+}
+
+class OccupancySample {
+    private long minuteStart;
+    private int parks;
+    private int unparks;
+    private int peakOccupied;
+    
+    public OccupancySample(long minuteStart, int parks, int unparks, int peakOccupied) {
+        this.minuteStart = minuteStart;
+        this.parks = parks;
+        this.unparks = unparks;
+        this.peakOccupied = peakOccupied;
+    }
+    
+    public long getMinuteStart() {
+        return minuteStart;
+    }
+    
+    public int getParks() {
+        return parks;
+    }
+    
+    public int getUnparks() {
+        return unparks;
+    }
+    
+    public int getPeakOccupied() {
+        return peakOccupied;
+    }
+}
+
+// Parks, unparks and peak occupancy per minute for the last `minutes` minutes, in primitive ring
+// buffers indexed by minute. The first event of a new minute recycles its slot: it marks the slot
+// as resetting, zeroes it and then stamps it, and other events wait out that short window instead
+// of counting into the old minute.
+//
+// Gates never share a counter on the hot path: park and unpark counts are striped by thread, with
+// each stripe's ring in its own part of the arrays, and occupancy is a LongAdder. A minute's peak
+// is only written when an event sees a new high. Under concurrency the occupancy an event reads
+// may miss events still in flight on other stripes, so the peak is exact for serial events and
+// otherwise within the number of gates parking at that moment.
+class OccupancyHistory {
+    static final int DEFAULT_MINUTES = 24 * 60;
+    private static final long MINUTE = 60_000;
+    private static final long RESETTING = -1;
+    
+    private int minutes;
+    private int stripes;
+    private AtomicLongArray minuteOfSlot;
+    // stripe s of a slot lives at s * minutes + slot
+    private AtomicIntegerArray parks;
+    private AtomicIntegerArray unparks;
+    private AtomicIntegerArray peakOccupied;
+    private LongAdder occupied;
+    
+    public OccupancyHistory(int minutes) {
+        this.minutes = minutes;
+        this.stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1;
+        this.minuteOfSlot = new AtomicLongArray(minutes);
+        this.parks = new AtomicIntegerArray(minutes * stripes);
+        this.unparks = new AtomicIntegerArray(minutes * stripes);
+        this.peakOccupied = new AtomicIntegerArray(minutes);
+        this.occupied = new LongAdder();
+    }
+    
+    public void recordPark(long now) {
+        occupied.increment();
+        int slot = slotFor(now / MINUTE);
+        if (slot >= 0) {
+            parks.incrementAndGet(stripe() * minutes + slot);
+            raisePeak(slot, (int) occupied.sum());
+        }
+    }
+    
+    // The slot is found before the count drops, so a minute starting with an unpark still records
+    // the occupancy it started at as its peak
+    public void recordUnpark(long now) {
+        int slot = slotFor(now / MINUTE);
+        occupied.decrement();
+        if (slot >= 0) {
+            unparks.incrementAndGet(stripe() * minutes + slot);
+        }
+    }
+    
+    private int stripe() {
+        return (int) Thread.currentThread().getId() & (stripes - 1);
+    }
+    
+    private void raisePeak(int slot, int occupiedNow) {
+        int peak;
+        while (occupiedNow > (peak = peakOccupied.get(slot)) && !peakOccupied.compareAndSet(slot, peak, occupiedNow)) {
+            Thread.onSpinWait();
+        }
+    }
+    
+    // The slot holding this minute, recycling it if it holds an older one; -1 if the minute has
+    // already been overwritten by a newer one
+    private int slotFor(long minute) {
+        int slot = (int) (minute % minutes);
+        while (true) {
+            long stamped = minuteOfSlot.get(slot);
+            if (stamped == minute) {
+                return slot;
+            }
+            if (stamped > minute) {
+                return -1;
+            }
+            if (stamped == RESETTING) {
+                Thread.onSpinWait();
+            } else if (minuteOfSlot.compareAndSet(slot, stamped, RESETTING)) {
+                for (int stripe = 0; stripe < stripes; stripe++) {
+                    parks.set(stripe * minutes + slot, 0);
+                    unparks.set(stripe * minutes + slot, 0);
                 }
+                peakOccupied.set(slot, (int) occupied.sum());
+                minuteOfSlot.set(slot, minute);
+                return slot;
             }
         }
-        return null; 
+    }
+    
+    public int getOccupied() {
+        return (int) occupied.sum();
+    }
+    
+    // Oldest first, one sample per minute that saw at least one event within the last count minutes
+    public List<OccupancySample> getHistory(int count) {
+        return getHistory(count, System.currentTimeMillis());
+    }
+    
+    List<OccupancySample> getHistory(int count, long now) {
+        long currentMinute = now / MINUTE;
+        List<OccupancySample> history = new ArrayList<>();
+        for (long minute = currentMinute - Math.min(count, minutes) + 1; minute <= currentMinute; minute++) {
+            int slot = (int) (minute % minutes);
+            if (minuteOfSlot.get(slot) == minute) {
+                int parked = 0;
+                int left = 0;
+                for (int stripe = 0; stripe < stripes; stripe++) {
+                    parked += parks.get(stripe * minutes + slot);
+                    left += unparks.get(stripe * minutes + slot);
+                }
+                history.add(new OccupancySample(minute * MINUTE, parked, left, peakOccupied.get(slot)));
+            }
+        }
+        return history;
+    }
+}
+
+// Free spots of each type ordered by distance from one entry gate. Every gate holds every free
+// spot: a claim through any gate or reservation removes the spot from all of them, and its release
+// puts it back into every gate. An entry can still go stale when a claim races a release of the
+// same spot; the gate drops it when its CAS claim fails.
+class EntryGate {
+    private static class Slot implements Comparable<Slot> {
+        final int distance;
+        final ParkingSpot spot;
+        
+        Slot(int distance, ParkingSpot spot) {
+            this.distance = distance;
+            this.spot = spot;
+        }
+        
+        @Override
+        public int compareTo(Slot other) {
+            int byDistance = Integer.compare(distance, other.distance);
+            return byDistance != 0 ? byDistance : spot.getId().compareTo(other.spot.getId());
+        }
+    }
+    
+    private String id;
+    private ToIntFunction<ParkingSpot> distance;
+    private EnumMap<ParkingSpotType, ConcurrentSkipListSet<Slot>> freeByDistance;
+    // computed once per spot, so a release never calls the distance function
+    private Map<ParkingSpot, Slot> slots;
+    
+    public EntryGate(String id, ToIntFunction<ParkingSpot> distance) {
+        this.id = id;
+        this.distance = distance;
+        this.freeByDistance = new EnumMap<>(ParkingSpotType.class);
+        this.slots = new ConcurrentHashMap<>();
+        for (ParkingSpotType type : ParkingSpotType.values()) {
+            freeByDistance.put(type, new ConcurrentSkipListSet<>());
+        }
+    }
+    
+    void addSpot(ParkingSpot spot) {
+        slots.put(spot, new Slot(distance.applyAsInt(spot), spot));
+        if (spot.isAvailable()) {
+            release(spot);
+        }
+    }
+    
+    void release(ParkingSpot spot) {
+        Slot slot = slots.get(spot);
+        if (slot != null) {
+            freeByDistance.get(spot.getType()).add(slot);
+        }
+    }
+    
+    void remove(ParkingSpot spot) {
+        Slot slot = slots.get(spot);
+        if (slot != null) {
+            freeByDistance.get(spot.getType()).remove(slot);
+        }
+    }
+    
+    // Spots reserved within the walk-in horizon are set aside by the lot, which removes them from
+    // every gate until their hold ends
+    ParkingSpot claimNearest(Vehicle vehicle, ParkingLot lot, long now) {
+        ParkingSpotType type = ParkingSpot.spotTypeFor(vehicle.getVehicleType());
+        if (type == null) {
+            return null;
+        }
+        ConcurrentSkipListSet<Slot> free = freeByDistance.get(type);
+        Slot slot;
+        while ((slot = free.pollFirst()) != null) {
+            if (!lot.holdIfReserved(slot.spot, now) && slot.spot.park(vehicle)) {
+                return slot.spot;
+            }
+        }
+        return null;
+    }
+    
+    public String getId() {
+        return id;
+    }
+}
+
+class Reservation {
+    private String reservationId;
+    private ParkingSpot parkingSpot;
+    private String licensePlate;
+    private long startTime;
+    private long endTime;
+    
+    public Reservation(String reservationId, ParkingSpot parkingSpot, String licensePlate, long startTime, long endTime) {
+        this.reservationId = reservationId;
+        this.parkingSpot = parkingSpot;
+        this.licensePlate = licensePlate;
+        this.startTime = startTime;
+        this.endTime = endTime;
+    }
+    
+    public String getReservationId() {
+        return reservationId;
+    }
+    
+    public ParkingSpot getParkingSpot() {
+        return parkingSpot;
+    }
+    
+    public String getLicensePlate() {
+        return licensePlate;
+    }
+    
+    public long getStartTime() {
+        return startTime;
+    }
+    
+    public long getEndTime() {
+        return endTime;
+    }
+}
+
+// Reservations per spot as [start, end) intervals. A spot's intervals never overlap, so keyed by
+// start time they are also sorted by end time, and the only interval that can overlap [s, e) is
+// the last one starting before e: every check is one lowerEntry, O(log n).
+class ReservationBook {
+    // A spot keyed by the end of its last reservation; `order` breaks ties between spots
+    private static class LastEnd implements Comparable<LastEnd> {
+        final long end;
+        final int order;
+        final ParkingSpot spot;
+        
+        LastEnd(long end, int order, ParkingSpot spot) {
+            this.end = end;
+            this.order = order;
+            this.spot = spot;
+        }
+        
+        @Override
+        public int compareTo(LastEnd other) {
+            int byEnd = Long.compare(end, other.end);
+            return byEnd != 0 ? byEnd : Integer.compare(order, other.order);
+        }
+    }
+    
+    static final long DEFAULT_WALK_IN_HORIZON = 2 * 60 * 60 * 1000L;
+    // how long before its start a reservation may be used; well inside the walk-in horizon, so the
+    // spot has been kept free by then
+    static final long EARLY_ARRIVAL_GRACE = 15 * 60 * 1000L;
+    static final long NOT_HELD = Long.MIN_VALUE;
+    
+    private ConcurrentHashMap<String, TreeMap<Long, Reservation>> reservationsBySpot;
+    private ConcurrentHashMap<String, Reservation> reservationsById;
+    // per spot type, every spot of the lot ordered by when its last reservation ends, so a booking
+    // for any spot finds one that is free from its start on in O(log n); updated under the spot's
+    // interval lock, adding the new key before removing the old one so the spot is never missing
+    private EnumMap<ParkingSpotType, ConcurrentSkipListSet<LastEnd>> spotsByLastEnd;
+    private ConcurrentHashMap<String, LastEnd> lastEnds;
+    private AtomicInteger spotOrder;
+    // walk-ins don't say when they leave, so a spot is kept free this long before a reservation
+    private long walkInHorizon;
+    
+    public ReservationBook(long walkInHorizon) {
+        this.reservationsBySpot = new ConcurrentHashMap<>();
+        this.reservationsById = new ConcurrentHashMap<>();
+        this.spotsByLastEnd = new EnumMap<>(ParkingSpotType.class);
+        for (ParkingSpotType type : ParkingSpotType.values()) {
+            spotsByLastEnd.put(type, new ConcurrentSkipListSet<>());
+        }
+        this.lastEnds = new ConcurrentHashMap<>();
+        this.spotOrder = new AtomicInteger();
+        this.walkInHorizon = walkInHorizon;
+    }
+    
+    // Makes the spot a candidate for reserveAny
+    void addSpot(ParkingSpot spot) {
+        LastEnd unreserved = new LastEnd(Long.MIN_VALUE, spotOrder.getAndIncrement(), spot);
+        if (lastEnds.putIfAbsent(spot.getId(), unreserved) == null) {
+            spotsByLastEnd.get(spot.getType()).add(unreserved);
+        }
+    }
+    
+    // Reserves a spot of the type for [startTime, endTime), or returns null if none is free then.
+    // Best fit first: the spot whose reservations end latest but no later than startTime, which
+    // takes the booking without overlap in one floor lookup. Only when every such spot is gone does
+    // it look for a gap between the reservations of spots booked past startTime, which is linear in
+    // those spots.
+    public Reservation reserveAny(ParkingSpotType type, String licensePlate, long startTime, long endTime) {
+        if (endTime <= startTime) {
+            throw new IllegalArgumentException("Reservation must end after it starts");
+        }
+        ConcurrentSkipListSet<LastEnd> spots = spotsByLastEnd.get(type);
+        LastEnd bound = new LastEnd(startTime, Integer.MAX_VALUE, null);
+        // a failed attempt means a concurrent booking took that spot first
+        for (LastEnd candidate = spots.floor(bound); candidate != null; candidate = spots.lower(candidate)) {
+            Reservation reservation = reserve(candidate.spot, licensePlate, startTime, endTime);
+            if (reservation != null) {
+                return reservation;
+            }
+        }
+        for (LastEnd candidate : spots.tailSet(bound)) {
+            if (isAvailable(candidate.spot, startTime, endTime)) {
+                Reservation reservation = reserve(candidate.spot, licensePlate, startTime, endTime);
+                if (reservation != null) {
+                    return reservation;
+                }
+            }
+        }
+        return null;
+    }
+    
+    // Null if the spot is already reserved for part of [startTime, endTime)
+    public Reservation reserve(ParkingSpot spot, String licensePlate, long startTime, long endTime) {
+        if (endTime <= startTime) {
+            throw new IllegalArgumentException("Reservation must end after it starts");
+        }
+        TreeMap<Long, Reservation> intervals = reservationsBySpot.computeIfAbsent(spot.getId(), id -> new TreeMap<>());
+        synchronized (intervals) {
+            dropEnded(intervals, System.currentTimeMillis());
+            updateLastEnd(spot, intervals);
+            if (overlaps(intervals, startTime, endTime)) {
+                return null;
+            }
+            Reservation reservation = new Reservation(UUID.randomUUID().toString(), spot, licensePlate, startTime, endTime);
+            intervals.put(startTime, reservation);
+            reservationsById.put(reservation.getReservationId(), reservation);
+            updateLastEnd(spot, intervals);
+            return reservation;
+        }
+    }
+    
+    public boolean isAvailable(ParkingSpot spot, long startTime, long endTime) {
+        TreeMap<Long, Reservation> intervals = reservationsBySpot.get(spot.getId());
+        if (intervals == null) {
+            return true;
+        }
+        synchronized (intervals) {
+            return !overlaps(intervals, startTime, endTime);
+        }
+    }
+    
+    // True if a reservation covers any part of the walk-in horizon starting now
+    public boolean isHeldForWalkIn(ParkingSpot spot, long now) {
+        return heldUntil(spot, now) != NOT_HELD;
+    }
+    
+    // End of the last reservation covering part of the walk-in horizon starting now, or NOT_HELD
+    public long heldUntil(ParkingSpot spot, long now) {
+        TreeMap<Long, Reservation> intervals = reservationsBySpot.get(spot.getId());
+        if (intervals == null) {
+            return NOT_HELD;
+        }
+        synchronized (intervals) {
+            Map.Entry<Long, Reservation> last = intervals.lowerEntry(now + walkInHorizon);
+            return last != null && last.getValue().getEndTime() > now ? last.getValue().getEndTime() : NOT_HELD;
+        }
+    }
+    
+    public Reservation getReservation(String reservationId) {
+        return reservationsById.get(reservationId);
+    }
+    
+    // Removes the reservation, whether it was cancelled or its driver has arrived
+    public Reservation remove(String reservationId) {
+        Reservation reservation = reservationsById.remove(reservationId);
+        if (reservation != null) {
+            TreeMap<Long, Reservation> intervals = reservationsBySpot.get(reservation.getParkingSpot().getId());
+            synchronized (intervals) {
+                intervals.remove(reservation.getStartTime(), reservation);
+                updateLastEnd(reservation.getParkingSpot(), intervals);
+            }
+        }
+        return reservation;
+    }
+    
+    // Called holding the spot's interval lock
+    private void updateLastEnd(ParkingSpot spot, TreeMap<Long, Reservation> intervals) {
+        LastEnd current = lastEnds.get(spot.getId());
+        Map.Entry<Long, Reservation> last = intervals.lastEntry();
+        long end = last == null ? Long.MIN_VALUE : last.getValue().getEndTime();
+        if (current == null || current.end == end) {
+            return;
+        }
+        LastEnd updated = new LastEnd(end, current.order, spot);
+        ConcurrentSkipListSet<LastEnd> spots = spotsByLastEnd.get(spot.getType());
+        spots.add(updated);
+        lastEnds.put(spot.getId(), updated);
+        spots.remove(current);
+    }
+    
+    private static boolean overlaps(TreeMap<Long, Reservation> intervals, long startTime, long endTime) {
+        Map.Entry<Long, Reservation> last = intervals.lowerEntry(endTime);
+        return last != null && last.getValue().getEndTime() > startTime;
+    }
+    
+    private void dropEnded(TreeMap<Long, Reservation> intervals, long now) {
+        Map.Entry<Long, Reservation> first;
+        while ((first = intervals.firstEntry()) != null && first.getValue().getEndTime() <= now) {
+            intervals.pollFirstEntry();
+            reservationsById.remove(first.getValue().getReservationId());
+        }
     }
 }
 
 class Ticket {
     private String ticketId;
-    private String parkingSpotId;
+    private ParkingSpot parkingSpot;
+    private String licensePlate;
     private long startTime;
     private long endTime;
     
-    public Ticket(String ticketId, String parkingSpotId, long startTime) {
+    public Ticket(String ticketId, ParkingSpot parkingSpot, String licensePlate, long startTime) {
         this.ticketId = ticketId;
-        this.parkingSpotId = parkingSpotId;
+        this.parkingSpot = parkingSpot;
+        this.licensePlate = licensePlate;
         this.startTime = startTime;
     }
     
@@ -185,7 +1134,19 @@ class Ticket {
     }
     
     public String getParkingSpotId() {
-        return parkingSpotId;
+        return parkingSpot.getId();
+    }
+    
+    public ParkingSpot getParkingSpot() {
+        return parkingSpot;
+    }
+    
+    public ParkingFloor getParkingFloor() {
+        return parkingSpot.getFloor();
+    }
+    
+    public String getLicensePlate() {
+        return licensePlate;
     }
     
     public String getTicketId() {
@@ -194,13 +1155,22 @@ class Ticket {
 }
 
 
+// Safe for concurrent entry and exit gates
 class ParkingManager {
     private ParkingLot parkingLot;
-    private HashMap<String, Ticket> activeTickets;
+    private ConcurrentHashMap<String, Ticket> activeTickets;
+    private ConcurrentHashMap<String, Ticket> activeTicketsByPlate;
+    private boolean logEvents;
     
     public ParkingManager(ParkingLot parkingLot) {
+        this(parkingLot, true);
+    }
+    
+    public ParkingManager(ParkingLot parkingLot, boolean logEvents) {
         this.parkingLot = parkingLot;
-        this.activeTickets = new HashMap<>();
+        this.activeTickets = new ConcurrentHashMap<>();
+        this.activeTicketsByPlate = new ConcurrentHashMap<>();
+        this.logEvents = logEvents;
     }
     
     /**
@@ -210,19 +1180,38 @@ class ParkingManager {
      * @return the issued Ticket
      */
     public Ticket parkVehicle(Vehicle vehicle) {
-        ParkingSpot assignedSpot = parkingLot.parkVehicle(vehicle);
+        return issueTicket(vehicle, parkingLot.parkVehicle(vehicle));
+    }
+    
+    /**
+     * Parks a vehicle in the free spot closest to the gate it entered by and issues a ticket.
+     *
+     * @param vehicle the vehicle to be parked
+     * @param gateId  the entry gate, as registered with ParkingLot.addEntryGate
+     * @return the issued Ticket
+     */
+    public Ticket parkVehicle(Vehicle vehicle, String gateId) {
+        return issueTicket(vehicle, parkingLot.parkVehicle(vehicle, gateId));
+    }
+    
+    private Ticket issueTicket(Vehicle vehicle, ParkingSpot assignedSpot) {
         
         if (assignedSpot == null) {
-            System.out.println("No parking spot available for vehicle type: " + vehicle.getVehicleType());
+            if (logEvents) {
+                System.out.println("No parking spot available for vehicle type: " + vehicle.getVehicleType());
+            }
             return null;
         }
         
         // Generate a new ticket
         String ticketId = UUID.randomUUID().toString();
-        Ticket ticket = new Ticket(ticketId, assignedSpot.getId(), System.currentTimeMillis());
+        Ticket ticket = new Ticket(ticketId, assignedSpot, vehicle.getLicensePlate(), System.currentTimeMillis());
         activeTickets.put(ticketId, ticket);
+        activeTicketsByPlate.put(vehicle.getLicensePlate(), ticket);
         
-        System.out.println("Vehicle parked. Ticket ID: " + ticketId);
+        if (logEvents) {
+            System.out.println("Vehicle parked. Ticket ID: " + ticketId);
+        }
         return ticket;
     }
     
@@ -233,26 +1222,113 @@ class ParkingManager {
      * @return the parking fee
      */
     public long unparkVehicle(String ticketId) {
-        Ticket ticket = activeTickets.get(ticketId);
+        // removing first means only one of two gates presenting the same ticket gets it
+        Ticket ticket = activeTickets.remove(ticketId);
         
         if (ticket == null) {
-            System.out.println("Invalid Ticket ID.");
+            if (logEvents) {
+                System.out.println("Invalid Ticket ID.");
+            }
             return -1;
         }
         
-        ParkingSpot spot = parkingLot.getSpotById(ticket.getParkingSpotId());
-        if (spot != null) {
-            spot.unPark();
-        }
+        activeTicketsByPlate.remove(ticket.getLicensePlate(), ticket);
+        parkingLot.unparkVehicle(ticket.getParkingSpot());
         
         ticket.endParking(System.currentTimeMillis());
         long fee = ticket.calculateFee();
         
-        activeTickets.remove(ticketId);
-        
         // System.out.println("Vehicle unparked. Parking fee: " + fee);
         return fee;
     }
+    
+    /**
+     * Reserves a specific spot for a time window.
+     *
+     * @param spotId       the spot to hold
+     * @param licensePlate the vehicle the reservation is for
+     * @param startTime    start of the window, epoch millis
+     * @param endTime      end of the window (exclusive), epoch millis
+     * @return the Reservation, or null if the spot is already reserved during the window
+     */
+    public Reservation reserveSpot(String spotId, String licensePlate, long startTime, long endTime) {
+        ParkingSpot spot = parkingLot.getSpotById(spotId);
+        if (spot == null) {
+            throw new IllegalArgumentException("Unknown spot: " + spotId);
+        }
+        return parkingLot.getReservations().reserve(spot, licensePlate, startTime, endTime);
+    }
+    
+    /**
+     * Reserves any spot that fits the vehicle for a time window.
+     *
+     * @param vehicle   the vehicle the reservation is for
+     * @param startTime start of the window, epoch millis
+     * @param endTime   end of the window (exclusive), epoch millis
+     * @return the Reservation, or null if every fitting spot is reserved during the window
+     */
+    public Reservation reserveSpot(Vehicle vehicle, long startTime, long endTime) {
+        ParkingSpotType type = ParkingSpot.spotTypeFor(vehicle.getVehicleType());
+        if (type == null) {
+            return null;
+        }
+        return parkingLot.getReservations().reserveAny(type, vehicle.getLicensePlate(), startTime, endTime);
+    }
+    
+    public boolean cancelReservation(String reservationId) {
+        Reservation reservation = parkingLot.getReservations().remove(reservationId);
+        if (reservation == null) {
+            return false;
+        }
+        parkingLot.reservationRemoved(reservation.getParkingSpot());
+        return true;
+    }
+    
+    /**
+     * Parks a vehicle in the spot it reserved and issues a ticket.
+     *
+     * @param reservationId the reservation made for this vehicle
+     * @param vehicle       the arriving vehicle
+     * @return the issued Ticket, or null if the reservation is unknown, outside its time window or its
+     *         spot is still occupied
+     */
+    public Ticket parkWithReservation(String reservationId, Vehicle vehicle) {
+        ReservationBook reservations = parkingLot.getReservations();
+        Reservation reservation = reservations.getReservation(reservationId);
+        if (reservation == null || !reservation.getLicensePlate().equals(vehicle.getLicensePlate())) {
+            if (logEvents) {
+                System.out.println("Invalid reservation ID.");
+            }
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (now < reservation.getStartTime() - ReservationBook.EARLY_ARRIVAL_GRACE || now >= reservation.getEndTime()) {
+            if (logEvents) {
+                System.out.println("Reservation " + reservationId + " is not valid at this time.");
+            }
+            return null;
+        }
+        ParkingSpot spot = reservation.getParkingSpot();
+        if (!spot.getFloor().claim(spot, vehicle)) {
+            if (logEvents) {
+                System.out.println("Reserved spot " + spot.getId() + " is still occupied.");
+            }
+            return null;
+        }
+        reservations.remove(reservationId);
+        parkingLot.reservationRemoved(spot);
+        return issueTicket(vehicle, spot);
+    }
+    
+    /**
+     * Finds the active ticket of a parked vehicle, for drivers who lost theirs.
+     *
+     * @param licensePlate the vehicle's license plate
+     * @return the active Ticket, or null if the vehicle is not parked here
+     */
+    public Ticket findTicketByLicensePlate(String licensePlate) {
+        return activeTicketsByPlate.get(licensePlate);
+    }
 }
 
 public class Main {
@@ -293,6 +1369,10 @@ public class Main {
         Vehicle car5 = new Car("CAR5");
         Ticket carTicket5 = manager.parkVehicle(car5);
         
+        OccupancySnapshot board = parkingLot.getOccupancyBoard().current();
+        System.out.println("Free compact spots: " + board.getAvailable(ParkingSpotType.COMPACT)
+                + " of " + board.getCapacity(ParkingSpotType.COMPACT));
+        
         // // Unpark vehicles
         if (carTicket1 != null) {
             long fee = manager.unparkVehicle(carTicket1.getTicketId());
@@ -342,5 +1422,372 @@ public class Main {
             long fee = manager.unparkVehicle(carTicket5.getTicketId());
             System.out.println("Parking fee for CAR5: " + fee);
         }
+        
+        for (OccupancySample sample : parkingLot.getOccupancyHistory().getHistory(60)) {
+            System.out.println("Minute " + sample.getMinuteStart() + ": " + sample.getParks() + " parks, "
+                    + sample.getUnparks() + " unparks, peak " + sample.getPeakOccupied());
+        }
+    }
+}
+
+// Parks and unparks from many gate threads at once and checks that no spot is ever handed to two
+// vehicles and that every counter is back to full capacity at the end.
+class ParkingStressTest {
+    
+    public static void main(String[] args) throws InterruptedException {
+        int operationsPerThread = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+        int maxThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            run(threads, operationsPerThread);
+        }
+    }
+    
+    private static void run(int threadCount, int operationsPerThread) throws InterruptedException {
+        int floorCount = 10;
+        int spotsPerFloor = 2_000;
+        ParkingLot lot = new ParkingLot("Stress");
+        for (int f = 0; f < floorCount; f++) {
+            ParkingFloor floor = new ParkingFloor("Floor " + f);
+            for (int i = 0; i < spotsPerFloor; i++) {
+                floor.addSpot(new ParkingSpot("F" + f + "-" + i, i % 2 == 0 ? ParkingSpotType.COMPACT : ParkingSpotType.BIKE));
+            }
+            lot.addFloor(floor);
+        }
+        ParkingManager manager = new ParkingManager(lot, false);
+        
+        // spot id to the plate parked in it, as seen by the gates
+        ConcurrentHashMap<String, String> occupied = new ConcurrentHashMap<>();
+        AtomicInteger doubleAllocations = new AtomicInteger();
+        Thread[] gates = new Thread[threadCount];
+        long start = System.nanoTime();
+        for (int t = 0; t < threadCount; t++) {
+            int gate = t;
+            gates[t] = new Thread(() -> {
+                Random random = new Random(gate);
+                List<Ticket> tickets = new ArrayList<>();
+                for (int i = 0; i < operationsPerThread; i++) {
+                    // each gate keeps up to 4k vehicles inside, so the lot runs close to full
+                    if (tickets.size() < 4_000 && random.nextBoolean()) {
+                        String plate = "G" + gate + "-" + i;
+                        Vehicle vehicle = random.nextBoolean() ? new Car(plate) : new Bike(plate);
+                        Ticket ticket = manager.parkVehicle(vehicle);
+                        if (ticket != null) {
+                            if (occupied.putIfAbsent(ticket.getParkingSpotId(), plate) != null) {
+                                doubleAllocations.incrementAndGet();
+                            }
+                            tickets.add(ticket);
+                        }
+                    } else if (!tickets.isEmpty()) {
+                        Ticket ticket = tickets.remove(random.nextInt(tickets.size()));
+                        occupied.remove(ticket.getParkingSpotId());
+                        manager.unparkVehicle(ticket.getTicketId());
+                    }
+                }
+                for (Ticket ticket : tickets) {
+                    occupied.remove(ticket.getParkingSpotId());
+                    manager.unparkVehicle(ticket.getTicketId());
+                }
+            });
+            gates[t].start();
+        }
+        for (Thread gate : gates) {
+            gate.join();
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        
+        if (doubleAllocations.get() > 0) {
+            throw new IllegalStateException(doubleAllocations.get() + " spots were handed out twice");
+        }
+        for (ParkingFloor floor : lot.floors) {
+            if (floor.getAvailableSpots(ParkingSpotType.COMPACT) != spotsPerFloor / 2
+                    || floor.getAvailableSpots(ParkingSpotType.BIKE) != spotsPerFloor / 2) {
+                throw new IllegalStateException("Counters on " + floor.getId() + " did not return to capacity");
+            }
+        }
+        long operations = (long) threadCount * operationsPerThread;
+        System.out.println("Gates: " + threadCount + ", operations: " + operations + ", "
+                + operations * 1_000_000_000L / elapsedNanos + " ops/s, no double allocation");
+    }
+}
+
+// Exercises reservations end to end: interval overlap at the boundaries, the walk-in horizon and
+// held spots leaving the counters, cancellation, lapsed holds and parkWithReservation's checks.
+class ReservationCheck {
+    private static final long HOUR = 60 * 60 * 1000L;
+    
+    public static void main(String[] args) throws InterruptedException {
+        checkOverlap();
+        checkWalkInHorizon(false);
+        checkWalkInHorizon(true);
+        checkCancel();
+        checkReserveAny();
+        checkLapsedHold();
+        checkParkWithReservation();
+        System.out.println("Reservation checks passed");
+    }
+    
+    private static void checkOverlap() {
+        ParkingManager manager = new ParkingManager(lot(1, false), false);
+        long start = System.currentTimeMillis() + 10 * HOUR;
+        long end = start + HOUR;
+        expect(manager.reserveSpot("C0-0", "A", start, end) != null, "first reservation");
+        expect(manager.reserveSpot("C0-0", "B", end, end + HOUR) != null, "a reservation starting at another's end");
+        expect(manager.reserveSpot("C0-0", "C", start - HOUR, start) != null, "a reservation ending at another's start");
+        expect(manager.reserveSpot("C0-0", "D", start - 1, start + 1) == null, "overlap by one milli at the start");
+        expect(manager.reserveSpot("C0-0", "D", end - 1, end + 1) == null, "overlap by one milli at the end");
+        expect(manager.reserveSpot("C0-0", "D", start + 1, end - 1) == null, "a window inside another");
+        expect(manager.reserveSpot("C0-0", "D", start - 2 * HOUR, end + 2 * HOUR) == null, "a window around others");
+        try {
+            manager.reserveSpot("C0-0", "D", start, start);
+            throw new IllegalStateException("an empty window was accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+    
+    // A reservation starting inside the horizon keeps its spot from walk-ins and off the counter; one
+    // starting after it does not
+    private static void checkWalkInHorizon(boolean gateAware) {
+        ParkingLot lot = lot(2, gateAware);
+        ParkingManager manager = new ParkingManager(lot, false);
+        long now = System.currentTimeMillis();
+        manager.reserveSpot("C0-1", "R1", now + HOUR, now + 2 * HOUR);
+        manager.reserveSpot("C0-0", "R2", now + 3 * HOUR, now + 4 * HOUR);
+        
+        Ticket walkIn = manager.parkVehicle(new Car("W1"));
+        expect(walkIn != null && walkIn.getParkingSpotId().equals("C0-0"), "walk-in took the spot reserved after the horizon");
+        ParkingFloor floor0 = lot.floors.get(0);
+        expect(floor0.getAvailableSpots(ParkingSpotType.COMPACT) == 0, "held spot still counted as available");
+        expect(gateAware || !lot.floorsWithCapacity.get(ParkingSpotType.COMPACT).contains(0), "floor of held spots kept as a candidate");
+        
+        Ticket next = manager.parkVehicle(new Car("W2"));
+        expect(next != null && next.getParkingSpotId().startsWith("C1-"), "walk-in sent past the held floor");
+        expect(lot.getSpotById("C0-1").isHeld(), "reserved spot not held");
+    }
+    
+    private static void checkCancel() {
+        ParkingLot lot = lot(1, false);
+        ParkingManager manager = new ParkingManager(lot, false);
+        long now = System.currentTimeMillis();
+        Reservation reservation = manager.reserveSpot("C0-1", "R", now + HOUR, now + 2 * HOUR);
+        Ticket walkIn = manager.parkVehicle(new Car("W1"));
+        expect(walkIn.getParkingSpotId().equals("C0-0"), "walk-in got the reserved spot");
+        expect(manager.parkVehicle(new Car("W2")) == null, "walk-in got a held spot");
+        
+        expect(manager.cancelReservation(reservation.getReservationId()), "cancel failed");
+        expect(!manager.cancelReservation(reservation.getReservationId()), "cancelled twice");
+        expect(lot.floors.get(0).getAvailableSpots(ParkingSpotType.COMPACT) == 1, "cancelled spot not back on the counter");
+        Ticket after = manager.parkVehicle(new Car("W3"));
+        expect(after != null && after.getParkingSpotId().equals("C0-1"), "cancelled spot not given to a walk-in");
+        expect(manager.reserveSpot("C0-1", "R", now + HOUR, now + 2 * HOUR) != null, "cancelled window still taken");
+    }
+    
+    // Forward bookings take the best-fitting spot; earlier ones fall back to gaps between bookings
+    private static void checkReserveAny() {
+        ParkingLot lot = lot(1, false);
+        ParkingManager manager = new ParkingManager(lot, false);
+        long base = System.currentTimeMillis() + 10 * HOUR;
+        Reservation first = manager.reserveSpot(new Car("A"), base, base + HOUR);
+        Reservation next = manager.reserveSpot(new Car("B"), base + HOUR, base + 2 * HOUR);
+        expect(next.getParkingSpot() == first.getParkingSpot(), "back-to-back booking not placed on the same spot");
+        Reservation other = manager.reserveSpot(new Car("C"), base, base + HOUR);
+        expect(other != null && other.getParkingSpot() != first.getParkingSpot(), "second spot not used");
+        expect(manager.reserveSpot(new Car("D"), base + HOUR / 2, base + 3 * HOUR / 2) == null, "overlapping booking accepted");
+        expect(manager.reserveSpot(new Car("E"), base - HOUR, base) != null
+                && manager.reserveSpot(new Car("F"), base - HOUR, base) != null, "gaps before later bookings not used");
+        expect(manager.reserveSpot(new Car("G"), base - HOUR, base) == null, "a third booking fit in two spots");
+        expect(manager.reserveSpot(new Truck("H"), base, base + HOUR) == null, "a truck got a compact spot");
+        
+        manager.cancelReservation(next.getReservationId());
+        Reservation again = manager.reserveSpot(new Car("I"), base + HOUR, base + 2 * HOUR);
+        expect(again != null, "cancelled window not bookable");
+        
+        // hourly bookings for a day across a 20k-spot garage, each one an O(log n) best fit
+        ParkingLot garage = new ParkingLot("Garage");
+        ParkingFloor floor = new ParkingFloor("Floor 0");
+        for (int i = 0; i < 20_000; i++) {
+            floor.addSpot(new ParkingSpot("G" + i, ParkingSpotType.COMPACT));
+        }
+        garage.addFloor(floor);
+        ParkingManager garageManager = new ParkingManager(garage, false);
+        long start = System.nanoTime();
+        int bookings = 0;
+        for (int hour = 0; hour < 24; hour++) {
+            for (int i = 0; i < 20_000; i++) {
+                expect(garageManager.reserveSpot(new Car("P" + i), base + hour * HOUR, base + (hour + 1) * HOUR) != null, "garage booking failed");
+                bookings++;
+            }
+        }
+        expect(garageManager.reserveSpot(new Car("FULL"), base, base + HOUR) == null, "garage overbooked");
+        long elapsedNanos = System.nanoTime() - start;
+        System.out.println("Booked " + bookings + " reservations in a 20000-spot garage, "
+                + bookings * 1_000_000_000L / elapsedNanos + " bookings/s");
+    }
+    
+    // A reservation nobody uses holds its spot until it ends, then the next park frees it
+    private static void checkLapsedHold() throws InterruptedException {
+        ParkingLot lot = lot(1, false);
+        ParkingManager manager = new ParkingManager(lot, false);
+        long now = System.currentTimeMillis();
+        manager.reserveSpot("C0-1", "R", now, now + 200);
+        manager.parkVehicle(new Car("W1"));
+        expect(manager.parkVehicle(new Car("W2")) == null, "walk-in got a held spot");
+        Thread.sleep(300);
+        Ticket after = manager.parkVehicle(new Car("W3"));
+        expect(after != null && after.getParkingSpotId().equals("C0-1"), "lapsed hold not freed");
+    }
+    
+    private static void checkParkWithReservation() {
+        ParkingLot lot = lot(1, true);
+        ParkingManager manager = new ParkingManager(lot, false);
+        long now = System.currentTimeMillis();
+        Reservation early = manager.reserveSpot("C0-0", "E", now + HOUR, now + 2 * HOUR);
+        // made after `early`, as reserving on a spot drops its reservations that have ended
+        Reservation ended = manager.reserveSpot("C0-0", "X", now - 2 * HOUR, now - HOUR);
+        Reservation current = manager.reserveSpot("C0-1", "R", now + 60_000, now + HOUR);
+        
+        expect(manager.parkWithReservation(early.getReservationId(), new Car("E")) == null, "parked an hour early");
+        expect(manager.parkWithReservation(ended.getReservationId(), new Car("X")) == null, "parked after the window");
+        expect(manager.parkWithReservation(current.getReservationId(), new Car("OTHER")) == null, "parked with another plate");
+        expect(manager.parkWithReservation(current.getReservationId(), new Truck("R")) == null, "parked the wrong vehicle type");
+        
+        // a walk-in sets the spot aside first, so the driver claims it from the held state
+        expect(manager.parkVehicle(new Car("W1")) == null, "walk-in got a held spot");
+        Ticket ticket = manager.parkWithReservation(current.getReservationId(), new Car("R"));
+        expect(ticket != null && ticket.getParkingSpotId().equals("C0-1"), "reserved spot not given to its driver");
+        expect(lot.getReservations().getReservation(current.getReservationId()) == null, "used reservation kept");
+        expect(manager.parkWithReservation(current.getReservationId(), new Car("R")) == null, "reservation used twice");
+        
+        manager.unparkVehicle(ticket.getTicketId());
+        Ticket walkIn = manager.parkVehicle(new Car("W2"));
+        expect(walkIn != null && walkIn.getParkingSpotId().equals("C0-1"), "spot not freed after the reserved stay");
+        expect(lot.floors.get(0).getAvailableSpots(ParkingSpotType.COMPACT) == 0, "counter drifted");
+    }
+    
+    // Floors of two compact spots. Walk-ins are offered C<floor>-1 first, both by the floor pool,
+    // which hands out the spot added last, and by the single gate.
+    private static ParkingLot lot(int floorCount, boolean gateAware) {
+        ParkingLot lot = new ParkingLot("Reservations");
+        for (int f = 0; f < floorCount; f++) {
+            ParkingFloor floor = new ParkingFloor("Floor " + f);
+            for (int i = 0; i < 2; i++) {
+                floor.addSpot(new ParkingSpot("C" + f + "-" + i, ParkingSpotType.COMPACT));
+            }
+            lot.addFloor(floor);
+        }
+        if (gateAware) {
+            lot.addEntryGate("North", spot -> spot.getId().charAt(1) * 10 - spot.getId().charAt(3));
+        }
+        return lot;
+    }
+    
+    private static void expect(boolean condition, String failure) {
+        if (!condition) {
+            throw new IllegalStateException(failure);
+        }
+    }
+}
+
+// Replays a known sequence of parks, unparks and holds and checks the board and the per-minute
+// history against counts worked out by hand.
+class OccupancyCheck {
+    private static final long MINUTE = 60_000;
+    
+    public static void main(String[] args) {
+        checkBoard();
+        checkHistory();
+        System.out.println("Occupancy checks passed");
+    }
+    
+    private static void checkBoard() {
+        ParkingLot lot = new ParkingLot("Occupancy");
+        for (int f = 0; f < 2; f++) {
+            ParkingFloor floor = new ParkingFloor("Floor " + f);
+            for (int i = 0; i < 3; i++) {
+                floor.addSpot(new ParkingSpot("C" + f + "-" + i, ParkingSpotType.COMPACT));
+            }
+            floor.addSpot(new ParkingSpot("B" + f, ParkingSpotType.BIKE));
+            lot.addFloor(floor);
+        }
+        ParkingManager manager = new ParkingManager(lot, false);
+        OccupancyBoard board = new OccupancyBoard(lot, 0);
+        
+        // three cars fill floor 0, a bike takes B0
+        List<Ticket> cars = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            cars.add(manager.parkVehicle(new Car("CAR" + i)));
+        }
+        manager.parkVehicle(new Bike("BIKE"));
+        OccupancySnapshot snapshot = board.current();
+        expect(snapshot.getAvailable(0, ParkingSpotType.COMPACT) == 0 && snapshot.getAvailable(1, ParkingSpotType.COMPACT) == 3,
+                "compact spots after three parks");
+        expect(snapshot.getAvailable(0, ParkingSpotType.BIKE) == 0 && snapshot.getAvailable(ParkingSpotType.BIKE) == 1,
+                "bike spots after one park");
+        expect(snapshot.getCapacity(ParkingSpotType.COMPACT) == 6 && snapshot.getCapacity(1, ParkingSpotType.BIKE) == 1,
+                "capacity");
+        
+        // one car leaves; its spot is then reserved and set aside by the next walk-in
+        manager.unparkVehicle(cars.get(0).getTicketId());
+        String freed = cars.get(0).getParkingSpotId();
+        long now = System.currentTimeMillis();
+        manager.reserveSpot(freed, "RESERVED", now + MINUTE, now + 2 * MINUTE);
+        Ticket walkIn = manager.parkVehicle(new Car("WALKIN"));
+        expect(walkIn.getParkingSpotId().startsWith("C1-"), "walk-in parked in a held spot");
+        snapshot = board.current();
+        expect(snapshot.getAvailable(0, ParkingSpotType.COMPACT) == 0 && snapshot.getHeld(0, ParkingSpotType.COMPACT) == 1,
+                "held spot reported as available");
+        expect(snapshot.getAvailable(ParkingSpotType.COMPACT) == 2 && snapshot.getHeld(ParkingSpotType.COMPACT) == 1,
+                "compact totals with a held spot");
+        
+        // five parks and one unpark so far; holds are not parks
+        OccupancyHistory history = lot.getOccupancyHistory();
+        expect(history.getOccupied() == 4, "occupied count");
+        int parks = 0;
+        int unparks = 0;
+        for (OccupancySample sample : history.getHistory(2)) {
+            parks += sample.getParks();
+            unparks += sample.getUnparks();
+        }
+        expect(parks == 5 && unparks == 1, "lot history counts");
+    }
+    
+    // Minute 0: 3 parks, 1 unpark, peak 3. Minute 1: 2 unparks, peak 2 carried over from the
+    // start of the minute. Minute 2: nothing. Minute 3: 1 park, peak 1. Then a 4-minute ring
+    // recycles minute 0's slot for minute 4, and late events for minute 0 are dropped.
+    private static void checkHistory() {
+        OccupancyHistory history = new OccupancyHistory(4);
+        long base = System.currentTimeMillis() / MINUTE * MINUTE;
+        history.recordPark(base);
+        history.recordPark(base + 1_000);
+        history.recordPark(base + 2_000);
+        history.recordUnpark(base + 59_999);
+        history.recordUnpark(base + MINUTE);
+        history.recordUnpark(base + MINUTE + 30_000);
+        history.recordPark(base + 3 * MINUTE + 10);
+        
+        List<OccupancySample> samples = history.getHistory(4, base + 3 * MINUTE);
+        expect(samples.size() == 3, "one sample per minute with events");
+        expectSample(samples.get(0), base, 3, 1, 3);
+        expectSample(samples.get(1), base + MINUTE, 0, 2, 2);
+        expectSample(samples.get(2), base + 3 * MINUTE, 1, 0, 1);
+        expect(history.getHistory(2, base + 3 * MINUTE).size() == 1, "count limits the window");
+        
+        history.recordUnpark(base + 4 * MINUTE);
+        history.recordPark(base + 5);
+        samples = history.getHistory(4, base + 4 * MINUTE);
+        expect(samples.size() == 3 && samples.get(0).getMinuteStart() == base + MINUTE, "recycled slot");
+        expectSample(samples.get(2), base + 4 * MINUTE, 0, 1, 1);
+        expect(history.getOccupied() == 1, "late park for an overwritten minute still counts as occupancy");
+    }
+    
+    private static void expectSample(OccupancySample sample, long minuteStart, int parks, int unparks, int peak) {
+        expect(sample.getMinuteStart() == minuteStart && sample.getParks() == parks && sample.getUnparks() == unparks
+                && sample.getPeakOccupied() == peak, "sample for minute " + minuteStart + ": " + sample.getParks() + " parks, "
+                + sample.getUnparks() + " unparks, peak " + sample.getPeakOccupied());
+    }
+    
+    private static void expect(boolean condition, String failure) {
+        if (!condition) {
+            throw new IllegalStateException(failure);
+        }
     }
 }
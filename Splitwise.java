@@ -1,16 +1,69 @@
 package Splitwise;
 
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Money is held as a whole number of cents so balances never drift
+final class Money {
+    private Money() {
+    }
+
+    public static long toCents(double amount) {
+        return Math.round(amount * 100);
+    }
+
+    public static double toAmount(long cents) {
+        return cents / 100.0;
+    }
+
+    // Percentages are carried as basis points (1/100 of a percent)
+    public static long toBasisPoints(double percentage) {
+        return Math.round(percentage * 100);
+    }
+}
 
 class User {
     private String userId;
     private String name;
-    private double balance;
+    // lock-free so concurrent expenses in the same group don't contend on one field
+    private final LongAdder balanceCents;
 
     public User(String userId, String name) {
         this.userId = userId;
         this.name = name;
-        this.balance = 0.0;
+        this.balanceCents = new LongAdder();
     }
 
     public String getUserId() {
@@ -22,53 +75,129 @@ class User {
     }
 
     public double getBalance() {
-        return balance;
+        return Money.toAmount(getBalanceCents());
+    }
+
+    public long getBalanceCents() {
+        return balanceCents.sum();
+    }
+
+    public void addBalance(long amountCents) {
+        balanceCents.add(amountCents);
+    }
+}
+
+interface IndexAmountConsumer {
+    void accept(int userIndex, long amountCents);
+}
+
+// Reusable output of a split: parallel arrays of member index and share in cents
+class SplitResult {
+    private int[] userIndexes = new int[8];
+    private long[] amounts = new long[8];
+    private int size;
+
+    public void clear() {
+        size = 0;
+    }
+
+    public void add(int userIndex, long amountCents) {
+        if (size == userIndexes.length) {
+            userIndexes = Arrays.copyOf(userIndexes, size * 2);
+            amounts = Arrays.copyOf(amounts, size * 2);
+        }
+        userIndexes[size] = userIndex;
+        amounts[size] = amountCents;
+        size++;
+    }
+
+    public void addToAmount(int i, long deltaCents) {
+        amounts[i] += deltaCents;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getUserIndex(int i) {
+        return userIndexes[i];
+    }
+
+    public long getAmount(int i) {
+        return amounts[i];
+    }
+
+    public int[] copyUserIndexes() {
+        return Arrays.copyOf(userIndexes, size);
     }
 
-    public void addBalance(double amount) {
-        this.balance += amount;
+    public long[] copyAmounts() {
+        return Arrays.copyOf(amounts, size);
     }
 }
 
 interface SplitStrategy {
-    Map<String, Double> split(double amount, List<User> users, List<Double> values);
+    // Writes one share per participant into result; the shares always add up to amountCents
+    void split(long amountCents, int[] userIndexes, int count, long[] values, SplitResult result);
 }
 
 class EqualSplit implements SplitStrategy {
     @Override
-    public Map<String, Double> split(double amount, List<User> users, List<Double> values) {
-        Map<String, Double> splitAmounts = new HashMap<>();
-        double splitAmount = amount / users.size();
-        for (User user : users) {
-            splitAmounts.put(user.getUserId(), splitAmount);
+    public void split(long amountCents, int[] userIndexes, int count, long[] values, SplitResult result) {
+        if (count == 0) {
+            throw new IllegalArgumentException("An equal split needs at least one participant");
+        }
+        // floored, so a negative amount such as a refund still leaves a remainder in [0, count)
+        long share = Math.floorDiv(amountCents, count);
+        long remainder = Math.floorMod(amountCents, count);
+        for (int i = 0; i < count; i++) {
+            result.add(userIndexes[i], i < remainder ? share + 1 : share);
         }
-        return splitAmounts;
-
     }
 }
 
 class ExactSplit implements SplitStrategy {
 
+    // values are the exact shares in cents
     @Override
-    public Map<String, Double> split(double amount, List<User> users, List<Double> values) {
-        Map<String, Double> splitAmounts = new HashMap<>();
-        for (int i = 0; i < users.size(); i++) {
-            splitAmounts.put(users.get(i).getUserId(), values.get(i));
+    public void split(long amountCents, int[] userIndexes, int count, long[] values, SplitResult result) {
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            total += values[i];
+        }
+        if (total != amountCents) {
+            throw new IllegalArgumentException("Exact splits must add up to the total amount");
+        }
+        for (int i = 0; i < count; i++) {
+            result.add(userIndexes[i], values[i]);
         }
-        return splitAmounts;
     }
 }
 
 class PercentageSplit implements SplitStrategy {
 
+    // values are percentages in basis points; shares are rounded down, also for negative amounts, so
+    // the leftover is never negative and its cents go to the first participants
     @Override
-    public Map<String, Double> split(double amount, List<User> users, List<Double> percentages) {
-        Map<String, Double> splitAmounts = new HashMap<>();
-        for (int i = 0; i < users.size(); i++) {
-            double share = (percentages.get(i) / 100) * amount;
-            splitAmounts.put(users.get(i).getUserId(), share);
+    public void split(long amountCents, int[] userIndexes, int count, long[] basisPoints, SplitResult result) {
+        long totalBasisPoints = 0;
+        for (int i = 0; i < count; i++) {
+            totalBasisPoints += basisPoints[i];
+        }
+        if (totalBasisPoints != 10_000) {
+            throw new IllegalArgumentException("Percentages must add up to 100");
+        }
+
+        int start = result.size();
+        long assigned = 0;
+        for (int i = 0; i < count; i++) {
+            long share = Math.floorDiv(amountCents * basisPoints[i], 10_000);
+            result.add(userIndexes[i], share);
+            assigned += share;
+        }
+        for (long i = 0; i < amountCents - assigned; i++) {
+            result.addToAmount(start + (int) i, 1);
         }
-        return splitAmounts;
     }
 }
 
@@ -79,14 +208,18 @@ enum SplitType {
 }
 
 class SplitStrategyFactory {
+    private static final SplitStrategy EQUAL_SPLIT = new EqualSplit();
+    private static final SplitStrategy EXACT_SPLIT = new ExactSplit();
+    private static final SplitStrategy PERCENTAGE_SPLIT = new PercentageSplit();
+
     public static SplitStrategy getSplitStrategy(SplitType type) {
         switch (type) {
             case EQUAL:
-                return new EqualSplit();
+                return EQUAL_SPLIT;
             case EXACT:
-                return new ExactSplit();
+                return EXACT_SPLIT;
             case PERCENTAGE:
-                return new PercentageSplit();
+                return PERCENTAGE_SPLIT;
             default:
                 throw new IllegalArgumentException("Invalid split type");
         }
@@ -96,14 +229,18 @@ class SplitStrategyFactory {
 class Expense {
     private String expenseId;
     private User paidBy;
-    private double totalAmount;
-    private Map<String, Double> splits;
+    private int paidByUserIndex;
+    private long totalAmountCents;
+    private int[] splitUserIndexes;
+    private long[] splitAmountsCents;
 
-    public Expense(String expenseId, User paidBy, double totalAmount, Map<String, Double> splits) {
+    public Expense(String expenseId, User paidBy, int paidByUserIndex, long totalAmountCents, int[] splitUserIndexes, long[] splitAmountsCents) {
         this.expenseId = expenseId;
         this.paidBy = paidBy;
-        this.totalAmount = totalAmount;
-        this.splits = splits;
+        this.paidByUserIndex = paidByUserIndex;
+        this.totalAmountCents = totalAmountCents;
+        this.splitUserIndexes = splitUserIndexes;
+        this.splitAmountsCents = splitAmountsCents;
     }
 
     public String getExpenseId() {
@@ -114,141 +251,1265 @@ class Expense {
         return paidBy;
     }
 
+    public int getPaidByUserIndex() {
+        return paidByUserIndex;
+    }
+
     public double getTotalAmount() {
-        return totalAmount;
+        return Money.toAmount(totalAmountCents);
+    }
+
+    public long getTotalAmountCents() {
+        return totalAmountCents;
+    }
+
+    public int getSplitCount() {
+        return splitUserIndexes.length;
+    }
+
+    public int getSplitUserIndex(int i) {
+        return splitUserIndexes[i];
+    }
+
+    public long getSplitAmountCents(int i) {
+        return splitAmountsCents[i];
+    }
+
+    public boolean hasSplitUser(int userIndex) {
+        for (int splitUserIndex : splitUserIndexes) {
+            if (splitUserIndex == userIndex) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public long getShareCents(int userIndex) {
+        long share = 0;
+        for (int i = 0; i < splitUserIndexes.length; i++) {
+            if (splitUserIndexes[i] == userIndex) {
+                share += splitAmountsCents[i];
+            }
+        }
+        return share;
+    }
+}
+
+// Net amounts one member has with each counterparty, keyed by member index (open addressing).
+// Each row is its own lock, so writers in the same group only meet when they touch the same member.
+class LedgerRow {
+    private static final int EMPTY = -1;
+
+    private int[] keys;
+    private long[] values;
+    private int size;
+
+    public LedgerRow() {
+        keys = new int[8];
+        values = new long[8];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    public synchronized void add(int counterpartyIndex, long amountCents) {
+        int slot = findSlot(keys, counterpartyIndex);
+        if (keys[slot] == EMPTY) {
+            keys[slot] = counterpartyIndex;
+            size++;
+        }
+        values[slot] += amountCents;
+        if (size * 4 >= keys.length * 3) {
+            resize();
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void forEach(IndexAmountConsumer consumer) {
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != EMPTY) {
+                consumer.accept(keys[slot], values[slot]);
+            }
+        }
+    }
+
+    private void resize() {
+        int[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new long[oldKeys.length * 2];
+        Arrays.fill(keys, EMPTY);
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldKeys[slot] != EMPTY) {
+                int newSlot = findSlot(keys, oldKeys[slot]);
+                keys[newSlot] = oldKeys[slot];
+                values[newSlot] = oldValues[slot];
+            }
+        }
+    }
+
+    private static int findSlot(int[] keys, int key) {
+        int mask = keys.length - 1;
+        int slot = (key * 0x9E3779B9) >>> 1 & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+}
+
+// Growable list of expense positions; entries below size() never change once written
+class PositionList {
+    private int[] positions;
+    private int size;
+
+    public PositionList() {
+        this(new int[0]);
+    }
+
+    public PositionList(int[] positions) {
+        this.positions = positions;
+        this.size = positions.length;
+    }
+
+    public void add(int position) {
+        if (size == positions.length) {
+            positions = Arrays.copyOf(positions, Math.max(8, size * 2));
+        }
+        positions[size++] = position;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int get(int i) {
+        return positions[i];
+    }
+
+    public int last() {
+        return positions[size - 1];
+    }
+
+    // The current backing array; safe to read up to the size observed alongside it
+    public int[] array() {
+        return positions;
+    }
+
+    public int[] copy() {
+        return Arrays.copyOf(positions, size);
+    }
+}
+
+class Transfer {
+    private final String fromUserId;
+    private final String toUserId;
+    private final long amountCents;
+
+    public Transfer(String fromUserId, String toUserId, long amountCents) {
+        this.fromUserId = fromUserId;
+        this.toUserId = toUserId;
+        this.amountCents = amountCents;
+    }
+
+    public String getFromUserId() {
+        return fromUserId;
+    }
+
+    public String getToUserId() {
+        return toUserId;
+    }
+
+    public double getAmount() {
+        return Money.toAmount(amountCents);
+    }
+
+    public long getAmountCents() {
+        return amountCents;
+    }
+
+    @Override
+    public String toString() {
+        return fromUserId + " pays " + toUserId + ": " + getAmount();
+    }
+}
+
+// Greedy debt simplification: repeatedly match the largest debtor with the largest creditor.
+// Produces at most (n - 1) transfers for n users with a non-zero balance, in O(n log n).
+class SettleUpEngine {
+
+    private static class Party {
+        private final String userId;
+        private long amountCents;
+
+        Party(String userId, long amountCents) {
+            this.userId = userId;
+            this.amountCents = amountCents;
+        }
+    }
+
+    public List<Transfer> settleUp(Collection<User> users) {
+        Comparator<Party> largestFirst = (a, b) -> Long.compare(b.amountCents, a.amountCents);
+        PriorityQueue<Party> creditors = new PriorityQueue<>(largestFirst);
+        PriorityQueue<Party> debtors = new PriorityQueue<>(largestFirst);
+        for (User user : users) {
+            long balance = user.getBalanceCents();
+            if (balance > 0) {
+                creditors.add(new Party(user.getUserId(), balance));
+            } else if (balance < 0) {
+                debtors.add(new Party(user.getUserId(), -balance));
+            }
+        }
+
+        List<Transfer> transfers = new ArrayList<>();
+        while (!creditors.isEmpty() && !debtors.isEmpty()) {
+            Party creditor = creditors.poll();
+            Party debtor = debtors.poll();
+            long amount = Math.min(creditor.amountCents, debtor.amountCents);
+            transfers.add(new Transfer(debtor.userId, creditor.userId, amount));
+
+            creditor.amountCents -= amount;
+            debtor.amountCents -= amount;
+            if (creditor.amountCents > 0) {
+                creditors.add(creditor);
+            }
+            if (debtor.amountCents > 0) {
+                debtors.add(debtor);
+            }
+        }
+        return transfers;
+    }
+}
+
+// One row of a bulk import, e.g. a parsed bank-statement line
+class ExpenseRecord {
+    private final String groupId;
+    private final String expenseId;
+    private final String paidByUserId;
+    private final double amount;
+    private final List<String> userIds;
+    private final SplitType splitType;
+    private final List<Double> values;
+
+    public ExpenseRecord(String groupId, String expenseId, String paidByUserId, double amount, List<String> userIds, SplitType splitType, List<Double> values) {
+        this.groupId = groupId;
+        this.expenseId = expenseId;
+        this.paidByUserId = paidByUserId;
+        this.amount = amount;
+        this.userIds = userIds;
+        this.splitType = splitType;
+        this.values = values;
+    }
+
+    public String getGroupId() {
+        return groupId;
+    }
+
+    public String getExpenseId() {
+        return expenseId;
+    }
+
+    public String getPaidByUserId() {
+        return paidByUserId;
+    }
+
+    public double getAmount() {
+        return amount;
+    }
+
+    public List<String> getUserIds() {
+        return userIds;
+    }
+
+    public SplitType getSplitType() {
+        return splitType;
+    }
+
+    public List<Double> getValues() {
+        return values;
     }
+}
 
-    public Map<String, Double> getSplits() {
-        return splits;
+// Per-thread scratch space for splitExpenses, so the ingest path needs no per-call buffers
+class SplitScratch {
+    final SplitResult splitResult = new SplitResult();
+    int[] participants = new int[8];
+    long[] values = new long[8];
+
+    void ensureCapacity(int count) {
+        if (participants.length < count) {
+            participants = new int[Math.max(count, participants.length * 2)];
+            values = new long[participants.length];
+        }
     }
 }
 
+// Safe for concurrent use: each group is independent, so different groups never share a lock.
+// Within a group, balances are LongAdders, ledger rows lock per member and only the expense
+// append is serialized.
 class SplitwiseGroup {
+    private static final ThreadLocal<SplitScratch> SCRATCH = ThreadLocal.withInitial(SplitScratch::new);
+
+    private static class SettleUpPlan {
+        private final long version;
+        private final List<Transfer> transfers;
+
+        SettleUpPlan(long version, List<Transfer> transfers) {
+            this.version = version;
+            this.transfers = transfers;
+        }
+    }
+
     private String id;
     private String name;
     private Map<String, User> users;
+    // members are numbered in join order so splits and the ledger can use primitive arrays
+    private Map<String, Integer> userIndexes;
+    private List<User> members;
     private List<Expense> expenses;
+    // one row per member: counterparty index -> net amount in cents, kept in step with expenses
+    private List<LedgerRow> settlementLedger;
+    // one row per member: positions of the expenses they take part in, guarded by the expenses lock
+    private List<PositionList> expenseIndex;
+    private final SettleUpEngine settleUpEngine = new SettleUpEngine();
+    // bumped after every expense; a cached plan is only reused while its version is current
+    private final AtomicLong version = new AtomicLong();
+    private volatile SettleUpPlan settleUpPlan;
+
+    // Set when the service is durable. journalOffsets holds the journal offset of every expense;
+    // the first archivedCount of them are not held in memory and are decoded from the journal on demand.
+    private volatile ExpenseJournal journal;
+    private long[] journalOffsets = new long[0];
+    private int journalOffsetCount;
+    private int archivedCount;
 
     public SplitwiseGroup(String id, String name) {
         this.id = id;
         this.name = name;
-        this.users = new HashMap<>();
+        this.users = new ConcurrentHashMap<>();
+        this.userIndexes = new ConcurrentHashMap<>();
+        this.members = new CopyOnWriteArrayList<>();
         this.expenses = new ArrayList<>();
+        this.settlementLedger = new CopyOnWriteArrayList<>();
+        this.expenseIndex = new CopyOnWriteArrayList<>();
     }
 
-    public void addUser(User user) {
+    public synchronized void addUser(User user) {
+        if (users.containsKey(user.getUserId())) {
+            return;
+        }
+        // journaled before the index is published, so no expense can be journaled against this member
+        // ahead of its MEMBER record
+        if (journal != null) {
+            journal.appendMember(id, user.getUserId());
+        }
         User copyUser = new User(user.getUserId(), user.getName());
+        // the ledger row and member must exist before the index is published to other threads
+        settlementLedger.add(new LedgerRow());
+        expenseIndex.add(new PositionList());
+        members.add(copyUser);
         users.put(user.getUserId(), copyUser);
+        userIndexes.put(user.getUserId(), members.size() - 1);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    void setJournal(ExpenseJournal journal) {
+        this.journal = journal;
+    }
+
+    public List<User> getMembers() {
+        return Collections.unmodifiableList(members);
     }
 
     public void splitExpenses(String expenseId, String paidByUserId, double amount, List<String> userIds, SplitType splitType, List<Double> values) {
-        User paidBy = users.get(paidByUserId);
-        List<User> splitUsers = new ArrayList<>();
-        for (String userId : userIds) {
-            splitUsers.add(users.get(userId));
+        Expense expense = createExpense(expenseId, paidByUserId, amount, userIds, splitType, values);
+        synchronized (expenses) {
+            appendExpense(expense);
+        }
+        applyExpense(expense);
+    }
+
+    private void applyExpense(Expense expense) {
+        expense.getPaidBy().addBalance(expense.getTotalAmountCents());
+        for (int i = 0; i < expense.getSplitCount(); i++) {
+            members.get(expense.getSplitUserIndex(i)).addBalance(-expense.getSplitAmountCents(i));
+        }
+        recordSettlement(expense);
+        version.incrementAndGet();
+    }
+
+    // All records are split before anything is applied, so an invalid record leaves the group untouched.
+    // Balance deltas are summed over the batch and applied once per member.
+    public void splitExpenses(List<ExpenseRecord> records) {
+        List<Expense> batch = new ArrayList<>(records.size());
+        for (ExpenseRecord record : records) {
+            batch.add(createExpense(record.getExpenseId(), record.getPaidByUserId(), record.getAmount(), record.getUserIds(), record.getSplitType(), record.getValues()));
+        }
+        synchronized (expenses) {
+            for (Expense expense : batch) {
+                appendExpense(expense);
+            }
+        }
+
+        long[] balanceDeltas = new long[members.size()];
+        for (Expense expense : batch) {
+            balanceDeltas[expense.getPaidByUserIndex()] += expense.getTotalAmountCents();
+            for (int i = 0; i < expense.getSplitCount(); i++) {
+                balanceDeltas[expense.getSplitUserIndex(i)] -= expense.getSplitAmountCents(i);
+            }
+            recordSettlement(expense);
+        }
+        for (int userIndex = 0; userIndex < balanceDeltas.length; userIndex++) {
+            if (balanceDeltas[userIndex] != 0) {
+                members.get(userIndex).addBalance(balanceDeltas[userIndex]);
+            }
+        }
+        version.incrementAndGet();
+    }
+
+    private Expense createExpense(String expenseId, String paidByUserId, double amount, List<String> userIds, SplitType splitType, List<Double> values) {
+        int count = userIds.size();
+        if (count == 0) {
+            throw new IllegalArgumentException("An expense needs at least one participant");
+        }
+        if (splitType != SplitType.EQUAL && (values == null || values.size() != count)) {
+            throw new IllegalArgumentException(splitType + " splits need one value per participant");
+        }
+        SplitScratch scratch = SCRATCH.get();
+        scratch.ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            scratch.participants[i] = getUserIndex(userIds.get(i));
+            if (splitType != SplitType.EQUAL) {
+                double value = values.get(i);
+                scratch.values[i] = splitType == SplitType.PERCENTAGE ? Money.toBasisPoints(value) : Money.toCents(value);
+            }
         }
 
-        SplitStrategy splitStrategy = SplitStrategyFactory.getSplitStrategy(splitType);
-        Map<String, Double> splitAmounts = splitStrategy.split(amount, splitUsers, values);
+        int paidByIndex = getUserIndex(paidByUserId);
+        long amountCents = Money.toCents(amount);
+        SplitResult splitResult = scratch.splitResult;
+        splitResult.clear();
+        SplitStrategyFactory.getSplitStrategy(splitType).split(amountCents, scratch.participants, count, scratch.values, splitResult);
+        return new Expense(expenseId, members.get(paidByIndex), paidByIndex, amountCents, splitResult.copyUserIndexes(), splitResult.copyAmounts());
+    }
+
+    // Caller holds the expenses lock, so journal order and history order always agree
+    private void appendExpense(Expense expense) {
+        if (journal != null) {
+            addJournalOffset(journal.appendExpense(id, expense));
+        }
+        addToHistory(expense);
+    }
 
-        Expense expense = new Expense(expenseId, paidBy, amount, splitAmounts);
+    // Caller holds the expenses lock
+    private void addToHistory(Expense expense) {
+        int position = archivedCount + expenses.size();
         expenses.add(expense);
+        for (int i = 0; i < expense.getSplitCount(); i++) {
+            PositionList positions = expenseIndex.get(expense.getSplitUserIndex(i));
+            if (positions.size() == 0 || positions.last() != position) {
+                positions.add(position);
+            }
+        }
+    }
 
-        for(Map.Entry<String, Double> entry : splitAmounts.entrySet()) {
-            String userId = entry.getKey();
-            double splitAmount = entry.getValue();
-            User user = users.get(userId);
+    private Expense expenseAt(int position) {
+        synchronized (expenses) {
+            if (position < archivedCount) {
+                return journal.readExpense(journalOffsets[position], members);
+            }
+            return expenses.get(position - archivedCount);
+        }
+    }
+
+    private void addJournalOffset(long offset) {
+        if (journalOffsetCount == journalOffsets.length) {
+            journalOffsets = Arrays.copyOf(journalOffsets, Math.max(16, journalOffsetCount * 2));
+        }
+        journalOffsets[journalOffsetCount++] = offset;
+    }
+
+    // Replays an expense from the journal tail during recovery; it is not journaled again
+    void recoverExpense(ExpenseJournal source, long offset) {
+        Expense expense = source.readExpense(offset, members);
+        synchronized (expenses) {
+            addJournalOffset(offset);
+            addToHistory(expense);
+        }
+        applyExpense(expense);
+    }
+
+    SplitwiseSnapshot.GroupState captureState() {
+        List<SplitwiseSnapshot.MemberState> memberStates = new ArrayList<>(members.size());
+        for (int userIndex = 0; userIndex < members.size(); userIndex++) {
+            int[] expensePositions;
+            synchronized (expenses) {
+                expensePositions = expenseIndex.get(userIndex).copy();
+            }
+            LedgerRow row = settlementLedger.get(userIndex);
+            int[] counterparties = new int[row.size()];
+            long[] amounts = new long[counterparties.length];
+            int[] next = new int[1];
+            row.forEach((counterpartyIndex, amountCents) -> {
+                counterparties[next[0]] = counterpartyIndex;
+                amounts[next[0]++] = amountCents;
+            });
+            User member = members.get(userIndex);
+            memberStates.add(new SplitwiseSnapshot.MemberState(member.getUserId(), member.getBalanceCents(), counterparties, amounts, expensePositions));
+        }
+        synchronized (expenses) {
+            return new SplitwiseSnapshot.GroupState(id, name, memberStates, Arrays.copyOf(journalOffsets, journalOffsetCount));
+        }
+    }
+
+    // Everything journaled so far is now covered by a snapshot, so history can be read back from the journal
+    void archiveExpenses() {
+        synchronized (expenses) {
+            archivedCount = journalOffsetCount;
+            expenses.clear();
+        }
+    }
+
+    void restoreState(SplitwiseSnapshot.GroupState state, Map<String, User> serviceUsers) {
+        for (SplitwiseSnapshot.MemberState memberState : state.members) {
+            addUser(serviceUsers.get(memberState.userId));
+            int userIndex = members.size() - 1;
+            members.get(userIndex).addBalance(memberState.balanceCents);
+            LedgerRow row = settlementLedger.get(userIndex);
+            for (int i = 0; i < memberState.counterparties.length; i++) {
+                row.add(memberState.counterparties[i], memberState.amounts[i]);
+            }
+            expenseIndex.set(userIndex, new PositionList(memberState.expensePositions));
+        }
+        synchronized (expenses) {
+            journalOffsets = state.expenseOffsets;
+            journalOffsetCount = journalOffsets.length;
+            archivedCount = journalOffsetCount;
+        }
+    }
 
-            if(user.getUserId().equals(paidByUserId)) {
-                user.addBalance(amount - splitAmount);
-            } else {
-                user.addBalance(-splitAmount);
+    private void recordSettlement(Expense expense) {
+        int paidByIndex = expense.getPaidByUserIndex();
+        LedgerRow payerRow = settlementLedger.get(paidByIndex);
+        for (int i = 0; i < expense.getSplitCount(); i++) {
+            int userIndex = expense.getSplitUserIndex(i);
+            long share = expense.getSplitAmountCents(i);
+            if (userIndex != paidByIndex) {
+                payerRow.add(userIndex, share);
+                settlementLedger.get(userIndex).add(paidByIndex, -share);
             }
         }
     }
 
+    private int getUserIndex(String userId) {
+        Integer index = userIndexes.get(userId);
+        if (index == null) {
+            throw new IllegalArgumentException("User not found in group");
+        }
+        return index;
+    }
+
+    private List<Expense> listExpenses() {
+        long[] archivedOffsets;
+        List<Expense> live;
+        synchronized (expenses) {
+            archivedOffsets = Arrays.copyOf(journalOffsets, archivedCount);
+            live = new ArrayList<>(expenses);
+        }
+        List<Expense> all = new ArrayList<>(archivedOffsets.length + live.size());
+        for (long offset : archivedOffsets) {
+            all.add(journal.readExpense(offset, members));
+        }
+        all.addAll(live);
+        return all;
+    }
+
     public void showExpenses() {
-        for (Expense expense : expenses) {
+        for (Expense expense : listExpenses()) {
             System.out.println("Expense: " + expense.getExpenseId() + ", Paid by: " + expense.getPaidBy().getName() + ", Amount: " + expense.getTotalAmount());
             System.out.println("Splits: ");
-            for (Map.Entry<String, Double> entry : expense.getSplits().entrySet()) {
-                System.out.println("User: " + users.get(entry.getKey()).getName() + ", Share: " + entry.getValue());
+            for (int i = 0; i < expense.getSplitCount(); i++) {
+                System.out.println("User: " + members.get(expense.getSplitUserIndex(i)).getName() + ", Share: " + Money.toAmount(expense.getSplitAmountCents(i)));
             }
             System.out.println();
         }
     }
 
     public void showExpensesForUser(String userId) {
-        User user = users.get(userId);
+        int userIndex = getUserIndex(userId);
+        User user = members.get(userIndex);
         System.out.println("Expenses for User: " + user.getName());
-        for (Expense expense : expenses) {
-            if (expense.getSplits().containsKey(userId)) {
-                System.out.println("Expense ID: " + expense.getExpenseId() + ", Amount: " + expense.getSplits().get(userId));
-            }
+        int[] positions;
+        synchronized (expenses) {
+            positions = expenseIndex.get(userIndex).copy();
+        }
+        for (int position : positions) {
+            Expense expense = expenseAt(position);
+            System.out.println("Expense ID: " + expense.getExpenseId() + ", Amount: " + Money.toAmount(expense.getShareCents(userIndex)));
         }
         System.out.println("Balance: " + user.getBalance());
     }
 
+    // Newest first; a page costs O(pageSize) no matter how many expenses the group has
+    public List<Expense> getExpensesForUser(String userId, int page, int pageSize) {
+        if (page < 0 || pageSize < 0) {
+            throw new IllegalArgumentException("Page and page size must not be negative");
+        }
+        int userIndex = getUserIndex(userId);
+        synchronized (expenses) {
+            PositionList positions = expenseIndex.get(userIndex);
+            long first = positions.size() - 1 - (long) page * pageSize;
+            List<Expense> result = new ArrayList<>((int) Math.max(0, Math.min(pageSize, first + 1)));
+            for (long i = first; i >= 0 && result.size() < pageSize; i--) {
+                result.add(expenseAt(positions.get((int) i)));
+            }
+            return result;
+        }
+    }
+
+    // Newest first, as of the call; each expense is only resolved when the stream reaches it
+    public Stream<Expense> streamExpensesForUser(String userId) {
+        int userIndex = getUserIndex(userId);
+        int[] positions;
+        int size;
+        synchronized (expenses) {
+            PositionList positionList = expenseIndex.get(userIndex);
+            positions = positionList.array();
+            size = positionList.size();
+        }
+        return IntStream.range(0, size).mapToObj(i -> expenseAt(positions[size - 1 - i]));
+    }
+
     public Map<String, Double> showAmountSettlementDetailsForUser(String userId) {
         Map<String, Double> settlements = new HashMap<>();
-        User currentUser = users.get(userId);
-        if (currentUser == null) {
-            throw new IllegalArgumentException("User not found in group");
+        settlementLedger.get(getUserIndex(userId)).forEach((counterpartyIndex, amountCents) ->
+                settlements.put(members.get(counterpartyIndex).getUserId(), Money.toAmount(amountCents)));
+        return settlements;
+    }
+
+    public List<Transfer> settleUp() {
+        SettleUpPlan plan = settleUpPlan;
+        long currentVersion = version.get();
+        if (plan == null || plan.version != currentVersion) {
+            plan = new SettleUpPlan(currentVersion, Collections.unmodifiableList(settleUpEngine.settleUp(members)));
+            settleUpPlan = plan;
         }
+        return plan.transfers;
+    }
 
-        for (Expense expense : expenses) {
-            String paidByUserId = expense.getPaidBy().getUserId();
-            Map<String, Double> splits = expense.getSplits();
+    // Full scan over the expense history; the ledger must always agree with this
+    Map<String, Double> computeSettlementDetailsByScan(String userId) {
+        int userIndex = getUserIndex(userId);
+        Map<Integer, Long> settlements = new HashMap<>();
+        for (Expense expense : listExpenses()) {
+            int paidByIndex = expense.getPaidByUserIndex();
 
             // If the user is the payer, calculate how much others owe them
-            if (paidByUserId.equals(userId)) {
-                for (Map.Entry<String, Double> entry : splits.entrySet()) {
-                    String splitUserId = entry.getKey();
-                    double splitAmount = entry.getValue();
-
-                    if (!splitUserId.equals(userId)) {
-                        settlements.put(splitUserId, settlements.getOrDefault(splitUserId, 0.0) + splitAmount);
+            if (paidByIndex == userIndex) {
+                for (int i = 0; i < expense.getSplitCount(); i++) {
+                    int splitUserIndex = expense.getSplitUserIndex(i);
+                    if (splitUserIndex != userIndex) {
+                        settlements.merge(splitUserIndex, expense.getSplitAmountCents(i), Long::sum);
                     }
                 }
-            } else if (splits.containsKey(userId)) {
+            } else if (expense.hasSplitUser(userIndex)) {
                 // If the user is part of the split, calculate what they owe
-                double splitAmount = splits.get(userId);
-                settlements.put(paidByUserId, settlements.getOrDefault(paidByUserId, 0.0) - splitAmount);
+                settlements.merge(paidByIndex, -expense.getShareCents(userIndex), Long::sum);
             }
         }
 
-        return settlements;
+        Map<String, Double> result = new HashMap<>();
+        settlements.forEach((index, amountCents) -> result.put(members.get(index).getUserId(), Money.toAmount(amountCents)));
+        return result;
     }
 
 }
 
-class SplitwiseService {
+interface JournalReplayListener {
+    void onUser(String userId, String name);
 
-    Map<String, User> users;
-    Map<String, SplitwiseGroup> splitwiseGroups;
+    void onGroup(String groupId, String name);
 
-    public SplitwiseService() {
-        users = new HashMap<>();
-        splitwiseGroups = new HashMap<>();
-    }
+    void onMember(String groupId, String userId);
 
-    public void createGroup(String groupId, String groupName) {
-        SplitwiseGroup splitwiseGroup = new SplitwiseGroup(groupId, groupName);
-        splitwiseGroups.put(groupId, splitwiseGroup);
-    }
+    void onExpense(String groupId, long offset);
+}
 
-    public void addUser(String userId, String name) {
-        User user = new User(userId, name);
-        users.put(userId, user);
+// Append-only, memory-mapped log of every Splitwise mutation.
+// The file is mapped in fixed-size segments and a record never straddles two of them.
+// It starts with [int magic][int version], and each record is [int length][int crc][byte type][body],
+// with the CRC covering type and body. On open the log ends at the first record whose length or
+// CRC doesn't check out, so the bytes of a torn append are never read as a record, not even once
+// later appends have overwritten part of them.
+class ExpenseJournal implements Closeable {
+    static final byte USER = 1;
+    static final byte GROUP = 2;
+    static final byte MEMBER = 3;
+    static final byte EXPENSE = 4;
+    // offset of the first record, after the file header
+    static final long FIRST_RECORD = 8;
+    private static final int MAGIC = 0x53504A4C;
+    private static final int VERSION = 2;
+    private static final int HEADER = 8;
+    private static final int END_OF_SEGMENT = -1;
+    private static final int SEGMENT_SIZE = 64 << 20;
+
+    private final FileChannel channel;
+    private final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<>();
+    // global offset of the next append
+    private long position;
+
+    // startOffset must be a record boundary, normally the offset stored in the last snapshot
+    public ExpenseJournal(Path file, long startOffset) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long segmentCount = Math.max(1, (channel.size() + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        for (int i = 0; i < segmentCount; i++) {
+            mapSegment(i);
+        }
+        MappedByteBuffer first = segments.get(0);
+        if (first.getInt(0) == 0) {
+            first.putInt(4, VERSION);
+            first.putInt(0, MAGIC);
+        } else if (first.getInt(0) != MAGIC || first.getInt(4) != VERSION) {
+            channel.close();
+            throw new IOException("Not a journal in the current format: " + file);
+        }
+        this.position = Math.max(startOffset, FIRST_RECORD);
+        while (true) {
+            int length = recordLength(position);
+            if (length != END_OF_SEGMENT && !isIntact(position, length)) {
+                break;
+            }
+            position = nextRecord(position, length);
+        }
+    }
+
+    public long getPosition() {
+        synchronized (this) {
+            return position;
+        }
+    }
+
+    public void replay(long fromOffset, JournalReplayListener listener) {
+        long end = getPosition();
+        long offset = fromOffset;
+        while (offset < end) {
+            int length = recordLength(offset);
+            if (length != END_OF_SEGMENT) {
+                ByteBuffer record = slice(offset + HEADER, length);
+                byte type = record.get();
+                String first = readString(record);
+                switch (type) {
+                    case USER:
+                        listener.onUser(first, readString(record));
+                        break;
+                    case GROUP:
+                        listener.onGroup(first, readString(record));
+                        break;
+                    case MEMBER:
+                        listener.onMember(first, readString(record));
+                        break;
+                    case EXPENSE:
+                        listener.onExpense(first, offset);
+                        break;
+                    default:
+                        throw new IllegalStateException("Corrupt journal record at " + offset);
+                }
+            }
+            offset = nextRecord(offset, length);
+        }
+    }
+
+    public long appendUser(String userId, String name) {
+        return append(USER, encode(userId), encode(name));
+    }
+
+    public long appendGroup(String groupId, String name) {
+        return append(GROUP, encode(groupId), encode(name));
+    }
+
+    public long appendMember(String groupId, String userId) {
+        return append(MEMBER, encode(groupId), encode(userId));
+    }
+
+    public synchronized long appendExpense(String groupId, Expense expense) {
+        byte[] group = encode(groupId);
+        byte[] expenseId = encode(expense.getExpenseId());
+        int count = expense.getSplitCount();
+        int length = 1 + 2 + group.length + 2 + expenseId.length + 4 + 8 + 4 + count * 12;
+        ByteBuffer record = reserve(length);
+        record.put(EXPENSE);
+        putString(record, group);
+        putString(record, expenseId);
+        record.putInt(expense.getPaidByUserIndex());
+        record.putLong(expense.getTotalAmountCents());
+        record.putInt(count);
+        for (int i = 0; i < count; i++) {
+            record.putInt(expense.getSplitUserIndex(i));
+            record.putLong(expense.getSplitAmountCents(i));
+        }
+        return commit(length);
+    }
+
+    public Expense readExpense(long offset, List<User> members) {
+        ByteBuffer record = slice(offset + HEADER, recordLength(offset));
+        if (record.get() != EXPENSE) {
+            throw new IllegalStateException("No expense record at " + offset);
+        }
+        readString(record);
+        String expenseId = readString(record);
+        int paidByIndex = record.getInt();
+        long totalAmountCents = record.getLong();
+        int count = record.getInt();
+        int[] userIndexes = new int[count];
+        long[] amounts = new long[count];
+        for (int i = 0; i < count; i++) {
+            userIndexes[i] = record.getInt();
+            amounts[i] = record.getLong();
+        }
+        return new Expense(expenseId, members.get(paidByIndex), paidByIndex, totalAmountCents, userIndexes, amounts);
+    }
+
+    // Flushes every mapped segment to disk
+    public void force() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    private synchronized long append(byte type, byte[] first, byte[] second) {
+        int length = 1 + 2 + first.length + 2 + second.length;
+        ByteBuffer record = reserve(length);
+        record.put(type);
+        putString(record, first);
+        putString(record, second);
+        return commit(length);
+    }
+
+    // Moves to the next segment if the record doesn't fit, and returns a buffer positioned at the body
+    private ByteBuffer reserve(int length) {
+        if (HEADER + length + 4 > SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Journal record too large: " + length + " bytes");
+        }
+        int segmentOffset = (int) (position % SEGMENT_SIZE);
+        if (segmentOffset + HEADER + length + 4 > SEGMENT_SIZE) {
+            segment(position).putInt(segmentOffset, END_OF_SEGMENT);
+            position = position - segmentOffset + SEGMENT_SIZE;
+        }
+        return slice(position + HEADER, length);
+    }
+
+    private long commit(int length) {
+        long offset = position;
+        int segmentOffset = (int) (offset % SEGMENT_SIZE);
+        MappedByteBuffer segment = segment(offset);
+        segment.putInt(segmentOffset + 4, checksum(slice(offset + HEADER, length)));
+        segment.putInt(segmentOffset, length);
+        position = offset + HEADER + length;
+        return offset;
+    }
+
+    private boolean isIntact(long offset, int length) {
+        int segmentOffset = (int) (offset % SEGMENT_SIZE);
+        if (length <= 0 || length > SEGMENT_SIZE - segmentOffset - HEADER) {
+            return false;
+        }
+        return segment(offset).getInt(segmentOffset + 4) == checksum(slice(offset + HEADER, length));
+    }
+
+    private static int checksum(ByteBuffer body) {
+        CRC32C crc = new CRC32C();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    private int recordLength(long offset) {
+        int segmentOffset = (int) (offset % SEGMENT_SIZE);
+        if (segmentOffset + 4 > SEGMENT_SIZE) {
+            return END_OF_SEGMENT;
+        }
+        return segment(offset).getInt(segmentOffset);
+    }
+
+    private long nextRecord(long offset, int length) {
+        if (length == END_OF_SEGMENT) {
+            return offset - offset % SEGMENT_SIZE + SEGMENT_SIZE;
+        }
+        return offset + HEADER + length;
+    }
+
+    private ByteBuffer slice(long offset, int length) {
+        return segment(offset).slice((int) (offset % SEGMENT_SIZE), length);
+    }
+
+    private MappedByteBuffer segment(long offset) {
+        int index = (int) (offset / SEGMENT_SIZE);
+        while (index >= segments.size()) {
+            mapSegment(segments.size());
+        }
+        return segments.get(index);
+    }
+
+    private void mapSegment(int index) {
+        try {
+            segments.add(channel.map(FileChannel.MapMode.READ_WRITE, (long) index * SEGMENT_SIZE, SEGMENT_SIZE));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] encode(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("Identifier too long for journal: " + value);
+        }
+        return bytes;
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
+
+// Point-in-time image of users, groups, balances, ledger rows, per-member expense positions and
+// the journal offset of every expense. Expense bodies stay in the journal, so restoring is proportional to users and ledger
+// size plus one long per expense.
+class SplitwiseSnapshot {
+    // Snapshots from before the version field used 0x53505753 and are rejected rather than misread
+    private static final int MAGIC = 0x53505756;
+    private static final int LEGACY_MAGIC = 0x53505753;
+    private static final int VERSION = 1;
+
+    static class MemberState {
+        final String userId;
+        final long balanceCents;
+        final int[] counterparties;
+        final long[] amounts;
+        final int[] expensePositions;
+
+        MemberState(String userId, long balanceCents, int[] counterparties, long[] amounts, int[] expensePositions) {
+            this.userId = userId;
+            this.balanceCents = balanceCents;
+            this.counterparties = counterparties;
+            this.amounts = amounts;
+            this.expensePositions = expensePositions;
+        }
+    }
+
+    static class GroupState {
+        final String groupId;
+        final String name;
+        final List<MemberState> members;
+        final long[] expenseOffsets;
+
+        GroupState(String groupId, String name, List<MemberState> members, long[] expenseOffsets) {
+            this.groupId = groupId;
+            this.name = name;
+            this.members = members;
+            this.expenseOffsets = expenseOffsets;
+        }
+    }
+
+    final long journalOffset;
+    final Map<String, String> userNames;
+    final List<GroupState> groups;
+
+    SplitwiseSnapshot(long journalOffset, Map<String, String> userNames, List<GroupState> groups) {
+        this.journalOffset = journalOffset;
+        this.userNames = userNames;
+        this.groups = groups;
+    }
+
+    // Written to a temporary file and moved into place, so a crash never leaves a partial snapshot
+    void write(Path file) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(journalOffset);
+            out.writeInt(userNames.size());
+            for (Map.Entry<String, String> user : userNames.entrySet()) {
+                writeString(out, user.getKey());
+                writeString(out, user.getValue());
+            }
+            out.writeInt(groups.size());
+            for (GroupState group : groups) {
+                writeString(out, group.groupId);
+                writeString(out, group.name);
+                out.writeInt(group.members.size());
+                for (MemberState member : group.members) {
+                    writeString(out, member.userId);
+                    out.writeLong(member.balanceCents);
+                    out.writeInt(member.counterparties.length);
+                    for (int i = 0; i < member.counterparties.length; i++) {
+                        out.writeInt(member.counterparties[i]);
+                        out.writeLong(member.amounts[i]);
+                    }
+                    out.writeInt(member.expensePositions.length);
+                    for (int position : member.expensePositions) {
+                        out.writeInt(position);
+                    }
+                }
+                out.writeInt(group.expenseOffsets.length);
+                for (long offset : group.expenseOffsets) {
+                    out.writeLong(offset);
+                }
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static SplitwiseSnapshot read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int magic = in.getInt();
+            if (magic == LEGACY_MAGIC) {
+                throw new IOException("Snapshot written in an older, unsupported format: " + file);
+            }
+            if (magic != MAGIC) {
+                throw new IOException("Not a Splitwise snapshot: " + file);
+            }
+            int version = in.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported Splitwise snapshot version " + version + ": " + file);
+            }
+            long journalOffset = in.getLong();
+            int userCount = in.getInt();
+            Map<String, String> userNames = new LinkedHashMap<>();
+            for (int i = 0; i < userCount; i++) {
+                userNames.put(readString(in), readString(in));
+            }
+            int groupCount = in.getInt();
+            List<GroupState> groups = new ArrayList<>(groupCount);
+            for (int g = 0; g < groupCount; g++) {
+                String groupId = readString(in);
+                String name = readString(in);
+                int memberCount = in.getInt();
+                List<MemberState> members = new ArrayList<>(memberCount);
+                for (int m = 0; m < memberCount; m++) {
+                    String userId = readString(in);
+                    long balanceCents = in.getLong();
+                    int entryCount = in.getInt();
+                    int[] counterparties = new int[entryCount];
+                    long[] amounts = new long[entryCount];
+                    for (int i = 0; i < entryCount; i++) {
+                        counterparties[i] = in.getInt();
+                        amounts[i] = in.getLong();
+                    }
+                    int[] expensePositions = new int[in.getInt()];
+                    in.asIntBuffer().get(expensePositions);
+                    in.position(in.position() + expensePositions.length * 4);
+                    members.add(new MemberState(userId, balanceCents, counterparties, amounts, expensePositions));
+                }
+                long[] expenseOffsets = new long[in.getInt()];
+                in.asLongBuffer().get(expenseOffsets);
+                in.position(in.position() + expenseOffsets.length * 8);
+                groups.add(new GroupState(groupId, name, members, expenseOffsets));
+            }
+            return new SplitwiseSnapshot(journalOffset, userNames, groups);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
+
+class SplitwiseService {
+    static final String JOURNAL_FILE = "journal.log";
+    private static final String SNAPSHOT_FILE = "snapshot.bin";
+
+    Map<String, User> users;
+    Map<String, SplitwiseGroup> splitwiseGroups;
+
+    // Durable mode only: mutations hold the read side, snapshots take the write side
+    private ExpenseJournal journal;
+    private Path directory;
+    private final ReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+    private ScheduledExecutorService snapshotScheduler;
+
+    public SplitwiseService() {
+        users = new ConcurrentHashMap<>();
+        splitwiseGroups = new ConcurrentHashMap<>();
+    }
+
+    // Opens a durable service backed by a journal and snapshot in the given directory,
+    // recovering from the latest snapshot plus the journal tail written after it
+    public static SplitwiseService open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        SplitwiseService service = new SplitwiseService();
+        long journalOffset = ExpenseJournal.FIRST_RECORD;
+        Path snapshotFile = directory.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshotFile)) {
+            SplitwiseSnapshot snapshot = SplitwiseSnapshot.read(snapshotFile);
+            snapshot.userNames.forEach(service::addUser);
+            for (SplitwiseSnapshot.GroupState groupState : snapshot.groups) {
+                service.createGroup(groupState.groupId, groupState.name);
+                service.splitwiseGroups.get(groupState.groupId).restoreState(groupState, service.users);
+            }
+            journalOffset = snapshot.journalOffset;
+        }
+
+        ExpenseJournal journal = new ExpenseJournal(directory.resolve(JOURNAL_FILE), journalOffset);
+        journal.replay(journalOffset, new JournalReplayListener() {
+            @Override
+            public void onUser(String userId, String name) {
+                service.addUser(userId, name);
+            }
+
+            @Override
+            public void onGroup(String groupId, String name) {
+                service.createGroup(groupId, name);
+            }
+
+            @Override
+            public void onMember(String groupId, String userId) {
+                service.addUserToGroup(groupId, userId);
+            }
+
+            @Override
+            public void onExpense(String groupId, long offset) {
+                service.splitwiseGroups.get(groupId).recoverExpense(journal, offset);
+            }
+        });
+
+        service.directory = directory;
+        service.journal = journal;
+        for (SplitwiseGroup group : service.splitwiseGroups.values()) {
+            group.setJournal(journal);
+        }
+        return service;
+    }
+
+    // Writes a snapshot so the next restart only replays the journal written after this point.
+    // Synchronized so a scheduled and a manual snapshot never share the temporary file, and an
+    // older capture never replaces a newer one.
+    public synchronized void snapshot() throws IOException {
+        if (journal == null) {
+            throw new IllegalStateException("Snapshots need a service opened with a directory");
+        }
+        SplitwiseSnapshot snapshot;
+        Lock lock = snapshotLock.writeLock();
+        lock.lock();
+        try {
+            List<SplitwiseSnapshot.GroupState> groups = new ArrayList<>();
+            for (SplitwiseGroup group : splitwiseGroups.values()) {
+                groups.add(group.captureState());
+                group.archiveExpenses();
+            }
+            Map<String, String> userNames = new LinkedHashMap<>();
+            users.forEach((userId, user) -> userNames.put(userId, user.getName()));
+            snapshot = new SplitwiseSnapshot(journal.getPosition(), userNames, groups);
+        } finally {
+            lock.unlock();
+        }
+        // the snapshot refers to journal offsets, so those must be on disk first
+        journal.force();
+        snapshot.write(directory.resolve(SNAPSHOT_FILE));
+    }
+
+    public synchronized void scheduleSnapshots(long period, TimeUnit unit) {
+        if (snapshotScheduler == null) {
+            snapshotScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "splitwise-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        snapshotScheduler.scheduleAtFixedRate(() -> {
+            try {
+                snapshot();
+            } catch (IOException e) {
+                System.err.println("Snapshot failed: " + e.getMessage());
+            }
+        }, period, period, unit);
+    }
+
+    public synchronized void close() throws IOException {
+        if (snapshotScheduler != null) {
+            snapshotScheduler.shutdownNow();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    private void mutate(Runnable mutation) {
+        if (journal == null) {
+            mutation.run();
+            return;
+        }
+        Lock lock = snapshotLock.readLock();
+        lock.lock();
+        try {
+            mutation.run();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void createGroup(String groupId, String groupName) {
+        mutate(() -> {
+            SplitwiseGroup splitwiseGroup = new SplitwiseGroup(groupId, groupName);
+            if (journal != null) {
+                journal.appendGroup(groupId, groupName);
+                splitwiseGroup.setJournal(journal);
+            }
+            splitwiseGroups.put(groupId, splitwiseGroup);
+        });
+    }
+
+    public void addUser(String userId, String name) {
+        mutate(() -> {
+            if (journal != null) {
+                journal.appendUser(userId, name);
+            }
+            User user = new User(userId, name);
+            users.put(userId, user);
+        });
     }
 
     public void addUserToGroup(String groupId, String userId) {
-        User user = users.get(userId);
-        splitwiseGroups.get(groupId).addUser(user);
+        mutate(() -> {
+            User user = users.get(userId);
+            splitwiseGroups.get(groupId).addUser(user);
+        });
     }
 
     public void splitExpenses(String groupId, String expenseId, String paidByUserId, double amount, List<String> userIds, SplitType splitType, List<Double> values) {
-        splitwiseGroups.get(groupId).splitExpenses(expenseId, paidByUserId, amount, userIds, splitType, values);
+        mutate(() -> splitwiseGroups.get(groupId).splitExpenses(expenseId, paidByUserId, amount, userIds, splitType, values));
+    }
+
+    // Bulk import: records are grouped by group and each group's batch runs as one fork-join task
+    public void splitExpenses(Stream<ExpenseRecord> records) {
+        Map<String, List<ExpenseRecord>> recordsByGroup = records.collect(Collectors.groupingBy(ExpenseRecord::getGroupId));
+        mutate(() -> recordsByGroup.entrySet().parallelStream()
+                .forEach(entry -> splitwiseGroups.get(entry.getKey()).splitExpenses(entry.getValue())));
     }
 
     public void showExpenses(String groupId) {
@@ -262,6 +1523,18 @@ class SplitwiseService {
     public Map<String, Double> showAmountSettlementDetailsForUser(String groupId, String userId) {
         return splitwiseGroups.get(groupId).showAmountSettlementDetailsForUser(userId);
     }
+
+    public List<Expense> getExpensesForUser(String groupId, String userId, int page, int pageSize) {
+        return splitwiseGroups.get(groupId).getExpensesForUser(userId, page, pageSize);
+    }
+
+    public Stream<Expense> streamExpensesForUser(String groupId, String userId) {
+        return splitwiseGroups.get(groupId).streamExpensesForUser(userId);
+    }
+
+    public List<Transfer> settleUp(String groupId) {
+        return splitwiseGroups.get(groupId).settleUp();
+    }
 }
 
 public class Splitwise {
@@ -289,5 +1562,488 @@ public class Splitwise {
         Map<String, Double> settlementDetails = service.showAmountSettlementDetailsForUser("G1", "U2");
         settlementDetails.forEach((k, v) -> System.out.println("User " + k + " owes: " + v));
 
+// Settle Up
+        service.settleUp("G1").forEach(System.out::println);
+
+    }
+}
+
+class SplitwiseBenchmark {
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        int expenseCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        benchmarkSettlementLedger(expenseCount);
+        benchmarkSettleUp(100_000);
+        checkSplitTotals();
+        stressConcurrentSplits(Math.max(4, Runtime.getRuntime().availableProcessors()), 200_000);
+        benchmarkBatchImport(64, 5_000);
+        checkTornTailRecovery();
+        benchmarkRecovery(expenseCount);
+    }
+
+    private static void benchmarkSettlementLedger(int expenseCount) {
+        int userCount = 50;
+        SplitwiseGroup group = new SplitwiseGroup("G1", "Benchmark");
+        List<String> userIds = new ArrayList<>();
+        for (int i = 0; i < userCount; i++) {
+            String userId = "U" + i;
+            userIds.add(userId);
+            group.addUser(new User(userId, "User" + i));
+        }
+
+        Random random = new Random(42);
+        for (int i = 0; i < expenseCount; i++) {
+            int payer = random.nextInt(userCount);
+            String paidBy = userIds.get(payer);
+            List<String> participants = Arrays.asList(paidBy, userIds.get((payer + 1) % userCount), userIds.get((payer + 2) % userCount));
+            group.splitExpenses("E" + i, paidBy, 1 + random.nextInt(10_000), participants, SplitType.EQUAL, null);
+        }
+
+        String userId = userIds.get(0);
+        long start = System.nanoTime();
+        Map<String, Double> fromLedger = group.showAmountSettlementDetailsForUser(userId);
+        long ledgerNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        Map<String, Double> fromScan = group.computeSettlementDetailsByScan(userId);
+        long scanNanos = System.nanoTime() - start;
+
+        if (!fromLedger.equals(fromScan)) {
+            throw new IllegalStateException("Ledger disagrees with full scan");
+        }
+        System.out.println("Expenses: " + expenseCount);
+        System.out.println("Ledger lookup: " + ledgerNanos / 1_000 + " us");
+        System.out.println("Full scan: " + scanNanos / 1_000 + " us");
+    }
+
+    private static void benchmarkSettleUp(int userCount) {
+        SplitwiseGroup group = new SplitwiseGroup("G2", "Settle Up");
+        List<String> userIds = new ArrayList<>();
+        for (int i = 0; i < userCount; i++) {
+            String userId = "U" + i;
+            userIds.add(userId);
+            group.addUser(new User(userId, "User" + i));
+        }
+
+        Random random = new Random(7);
+        for (int i = 0; i < userCount; i++) {
+            String paidBy = userIds.get(i);
+            List<String> participants = Arrays.asList(paidBy, userIds.get((i + 1 + random.nextInt(userCount - 1)) % userCount));
+            group.splitExpenses("E" + i, paidBy, 1 + random.nextInt(10_000), participants, SplitType.EQUAL, null);
+        }
+
+        long start = System.nanoTime();
+        List<Transfer> transfers = group.settleUp();
+        long settleUpNanos = System.nanoTime() - start;
+
+        System.out.println("Members: " + userCount + ", transfers: " + transfers.size());
+        System.out.println("Settle up: " + settleUpNanos / 1_000_000 + " ms");
+    }
+
+    // Many threads split expenses into a few groups plus one hot group shared by all of them
+    // Equal and percentage splits of refunds, zero and uneven amounts must add up to the total exactly
+    private static void checkSplitTotals() {
+        long[] amounts = {-100, -101, -1, 0, 1, 100, 101, -1_234_567, 1_234_567};
+        int[] counts = {1, 3, 7};
+        SplitResult result = new SplitResult();
+        for (int count : counts) {
+            int[] userIndexes = new int[count];
+            long[] basisPoints = new long[count];
+            for (int i = 0; i < count; i++) {
+                userIndexes[i] = i;
+                basisPoints[i] = 10_000 / count + (i < 10_000 % count ? 1 : 0);
+            }
+            for (long amountCents : amounts) {
+                for (SplitType splitType : new SplitType[] {SplitType.EQUAL, SplitType.PERCENTAGE}) {
+                    result.clear();
+                    SplitStrategyFactory.getSplitStrategy(splitType).split(amountCents, userIndexes, count, basisPoints, result);
+                    long total = 0;
+                    long smallest = Long.MAX_VALUE;
+                    long largest = Long.MIN_VALUE;
+                    for (int i = 0; i < result.size(); i++) {
+                        total += result.getAmount(i);
+                        smallest = Math.min(smallest, result.getAmount(i));
+                        largest = Math.max(largest, result.getAmount(i));
+                    }
+                    if (total != amountCents || (splitType == SplitType.EQUAL && largest - smallest > 1)) {
+                        throw new IllegalStateException(splitType + " split of " + amountCents + " cents between " + count
+                                + " sums to " + total + " with shares from " + smallest + " to " + largest);
+                    }
+                }
+            }
+        }
+        System.out.println("Split totals: equal and percentage splits add up, refunds included");
+    }
+
+    private static void stressConcurrentSplits(int threadCount, int expensesPerThread) throws InterruptedException {
+        SplitwiseService service = new SplitwiseService();
+        int userCount = 20;
+        List<String> userIds = new ArrayList<>();
+        for (int i = 0; i < userCount; i++) {
+            userIds.add("U" + i);
+            service.addUser("U" + i, "User" + i);
+        }
+        List<String> groupIds = new ArrayList<>();
+        for (int g = 0; g <= threadCount; g++) {
+            String groupId = g == 0 ? "HOT" : "G" + g;
+            groupIds.add(groupId);
+            service.createGroup(groupId, groupId);
+            for (String userId : userIds) {
+                service.addUserToGroup(groupId, userId);
+            }
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int t = 0; t < threadCount; t++) {
+            int threadId = t;
+            tasks.add(() -> {
+                Random random = new Random(threadId);
+                for (int i = 0; i < expensesPerThread; i++) {
+                    String groupId = i % 2 == 0 ? "HOT" : groupIds.get(1 + threadId);
+                    int payer = random.nextInt(userCount);
+                    List<String> participants = Arrays.asList(userIds.get(payer), userIds.get((payer + 1) % userCount), userIds.get((payer + 3) % userCount));
+                    service.splitExpenses(groupId, "E" + threadId + "-" + i, userIds.get(payer), (1 + random.nextInt(100_000)) / 100.0, participants, SplitType.EQUAL, null);
+                }
+                return null;
+            });
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        long start = System.nanoTime();
+        // tasks still running at the timeout are cancelled, so get() reports them as well as failures
+        List<Future<Void>> results = executor.invokeAll(tasks, 10, TimeUnit.MINUTES);
+        long elapsedNanos = System.nanoTime() - start;
+        executor.shutdown();
+        for (Future<Void> result : results) {
+            try {
+                result.get();
+            } catch (CancellationException e) {
+                throw new IllegalStateException("Concurrent splits did not finish within the timeout");
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Concurrent split failed", e.getCause());
+            }
+        }
+
+        for (String groupId : groupIds) {
+            SplitwiseGroup group = service.splitwiseGroups.get(groupId);
+            long total = 0;
+            for (User member : group.getMembers()) {
+                total += member.getBalanceCents();
+            }
+            if (total != 0) {
+                throw new IllegalStateException("Balances in " + groupId + " sum to " + total + " cents");
+            }
+        }
+        SplitwiseGroup hotGroup = service.splitwiseGroups.get("HOT");
+        for (String userId : userIds) {
+            if (!hotGroup.showAmountSettlementDetailsForUser(userId).equals(hotGroup.computeSettlementDetailsByScan(userId))) {
+                throw new IllegalStateException("Ledger disagrees with full scan for " + userId);
+            }
+        }
+        long totalExpenses = (long) threadCount * expensesPerThread;
+        System.out.println("Threads: " + threadCount + ", expenses: " + totalExpenses + ", balances sum to zero");
+        System.out.println("Concurrent splits: " + totalExpenses * 1_000_000_000L / elapsedNanos + " expenses/s");
+    }
+
+    // Returns every member balance of every group, so the service itself can be collected
+    private static long[] importRecords(int groupCount, List<String> userIds, List<ExpenseRecord> records, boolean batch) {
+        SplitwiseService service = createImportService(groupCount, userIds);
+        if (batch) {
+            service.splitExpenses(records.stream());
+        } else {
+            for (ExpenseRecord record : records) {
+                service.splitExpenses(record.getGroupId(), record.getExpenseId(), record.getPaidByUserId(), record.getAmount(),
+                        record.getUserIds(), record.getSplitType(), record.getValues());
+            }
+        }
+
+        long[] balances = new long[groupCount * userIds.size()];
+        for (int g = 0; g < groupCount; g++) {
+            List<User> members = service.splitwiseGroups.get("G" + g).getMembers();
+            for (int i = 0; i < members.size(); i++) {
+                balances[g * userIds.size() + i] = members.get(i).getBalanceCents();
+            }
+        }
+        return balances;
+    }
+
+    private static SplitwiseService createImportService(int groupCount, List<String> userIds) {
+        SplitwiseService service = new SplitwiseService();
+        for (String userId : userIds) {
+            service.addUser(userId, userId);
+        }
+        for (int g = 0; g < groupCount; g++) {
+            service.createGroup("G" + g, "Import" + g);
+            for (String userId : userIds) {
+                service.addUserToGroup("G" + g, userId);
+            }
+        }
+        return service;
+    }
+
+    // Row-at-a-time splitExpenses against the batch API on the same generated import
+    private static void benchmarkBatchImport(int groupCount, int recordsPerGroup) {
+        int userCount = 10;
+        List<String> userIds = new ArrayList<>();
+        for (int i = 0; i < userCount; i++) {
+            userIds.add("U" + i);
+        }
+        Random random = new Random(11);
+        List<ExpenseRecord> records = new ArrayList<>();
+        String groupId = "G0";
+        for (int i = 0; i < groupCount * recordsPerGroup; i++) {
+            // statements arrive as runs of rows for the same group
+            if (i % 100 == 0) {
+                groupId = "G" + random.nextInt(groupCount);
+            }
+            int payer = random.nextInt(userCount);
+            List<String> participants = Arrays.asList(userIds.get(payer), userIds.get((payer + 1) % userCount), userIds.get((payer + 2) % userCount));
+            records.add(new ExpenseRecord(groupId, "E" + i, userIds.get(payer),
+                    (1 + random.nextInt(100_000)) / 100.0, participants, SplitType.PERCENTAGE, Arrays.asList(50.0, 25.0, 25.0)));
+        }
+
+        long start = System.nanoTime();
+        long[] rowBalances = importRecords(groupCount, userIds, records, false);
+        long rowNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        long[] batchBalances = importRecords(groupCount, userIds, records, true);
+        long batchNanos = System.nanoTime() - start;
+
+        if (!Arrays.equals(rowBalances, batchBalances)) {
+            throw new IllegalStateException("Batch import disagrees with row-at-a-time import");
+        }
+        System.out.println("Import of " + records.size() + " records: row-at-a-time " + rowNanos / 1_000_000 + " ms, batch " + batchNanos / 1_000_000 + " ms");
+    }
+
+    // A crash in the middle of an append leaves body bytes but no length behind the last record.
+    // Restarting, appending a shorter expense on top of them and restarting again must recover
+    // exactly what an in-memory service holds after the same calls.
+    private static void checkTornTailRecovery() throws IOException {
+        Path directory = Files.createTempDirectory("splitwise-torn");
+        SplitwiseService reference = new SplitwiseService();
+        SplitwiseService service = SplitwiseService.open(directory);
+        List<String> userIds = Arrays.asList("U0", "U1", "U2");
+        for (SplitwiseService target : Arrays.asList(reference, service)) {
+            for (String userId : userIds) {
+                target.addUser(userId, "User " + userId);
+            }
+            target.createGroup("G1", "Torn");
+            for (String userId : userIds) {
+                target.addUserToGroup("G1", userId);
+            }
+            for (int i = 0; i < 3; i++) {
+                target.splitExpenses("G1", "E" + i, userIds.get(i), 30.0 + i, userIds, SplitType.EQUAL, null);
+            }
+        }
+        service.close();
+
+        Path journalFile = directory.resolve(SplitwiseService.JOURNAL_FILE);
+        long end;
+        try (ExpenseJournal journal = new ExpenseJournal(journalFile, ExpenseJournal.FIRST_RECORD)) {
+            end = journal.getPosition();
+        }
+        byte[] tornBody = new byte[1_000];
+        Arrays.fill(tornBody, (byte) 0x41);
+        try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(tornBody), end + 4);
+        }
+
+        for (int restart = 0; restart < 2; restart++) {
+            service = SplitwiseService.open(directory);
+            if (!service.settleUp("G1").toString().equals(reference.settleUp("G1").toString())) {
+                throw new IllegalStateException("Recovery after a torn append differs from the reference, restart " + restart);
+            }
+            for (SplitwiseService target : Arrays.asList(reference, service)) {
+                target.splitExpenses("G1", "R" + restart, "U1", 9.0, Arrays.asList("U1", "U2"), SplitType.EQUAL, null);
+            }
+            service.close();
+        }
+        service = SplitwiseService.open(directory);
+        if (!service.settleUp("G1").toString().equals(reference.settleUp("G1").toString())) {
+            throw new IllegalStateException("Recovery after appending past a torn tail differs from the reference");
+        }
+        service.close();
+        System.out.println("Torn append: recovered across restarts");
+    }
+
+    // Journals the expenses with a snapshot every million, adds a short tail, then times a cold open
+    private static void benchmarkRecovery(int expenseCount) throws IOException {
+        Path directory = Files.createTempDirectory("splitwise-journal");
+        int userCount = 50;
+        List<String> userIds = new ArrayList<>();
+        SplitwiseService service = SplitwiseService.open(directory);
+        for (int i = 0; i < userCount; i++) {
+            userIds.add("U" + i);
+            service.addUser("U" + i, "User" + i);
+        }
+        service.createGroup("G1", "Journal");
+        for (String userId : userIds) {
+            service.addUserToGroup("G1", userId);
+        }
+
+        Random random = new Random(3);
+        int tail = 10_000;
+        for (int i = 0; i < expenseCount + tail; i++) {
+            int payer = random.nextInt(userCount);
+            List<String> participants = Arrays.asList(userIds.get(payer), userIds.get((payer + 1) % userCount), userIds.get((payer + 2) % userCount));
+            service.splitExpenses("G1", "E" + i, userIds.get(payer), (1 + random.nextInt(100_000)) / 100.0, participants, SplitType.EQUAL, null);
+            if ((i + 1) % 1_000_000 == 0 || i + 1 == expenseCount) {
+                service.snapshot();
+            }
+        }
+        List<Transfer> expected = service.settleUp("G1");
+        service.close();
+
+        long start = System.nanoTime();
+        SplitwiseService recovered = SplitwiseService.open(directory);
+        long recoveryNanos = System.nanoTime() - start;
+
+        if (!recovered.settleUp("G1").toString().equals(expected.toString())) {
+            throw new IllegalStateException("Recovered balances differ from the originals");
+        }
+        recovered.close();
+        System.out.println("Recovery of " + expenseCount + " expenses + " + tail + " tail: " + recoveryNanos / 1_000_000 + " ms");
+    }
+}
+
+// Microbenchmarks for the split strategies, splitExpenses and the settlement paths.
+// Each case is warmed up, then timed over several rounds; allocation per operation comes from the
+// per-thread allocation counter, which is what a GC profiler reports for a single-threaded case.
+// Usage: SplitwiseBenchmarkSuite [maxHistoryLength], e.g. 10000000 with a large enough heap.
+class SplitwiseBenchmarkSuite {
+    private static final int[] GROUP_SIZES = {3, 100, 10_000, 100_000};
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 5;
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    interface Operation {
+        void run(int iteration);
+    }
+
+    public static void main(String[] args) {
+        int maxHistoryLength = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        System.out.printf("%-40s %12s %14s %12s%n", "benchmark", "param", "ns/op", "B/op");
+
+        for (int groupSize : GROUP_SIZES) {
+            benchmarkStrategies(groupSize);
+        }
+        for (int groupSize : GROUP_SIZES) {
+            benchmarkSplitExpenses(groupSize);
+        }
+        for (int historyLength = 1; historyLength <= maxHistoryLength; historyLength *= 10) {
+            benchmarkSettlement(historyLength);
+        }
+        for (int groupSize : GROUP_SIZES) {
+            benchmarkSettleUp(groupSize);
+        }
+    }
+
+    private static void benchmarkStrategies(int groupSize) {
+        int[] userIndexes = new int[groupSize];
+        long[] exactValues = new long[groupSize];
+        long[] basisPoints = new long[groupSize];
+        long amountCents = 100L * groupSize * 1_000 + 7;
+        for (int i = 0; i < groupSize; i++) {
+            userIndexes[i] = i;
+            exactValues[i] = amountCents / groupSize + (i < amountCents % groupSize ? 1 : 0);
+            basisPoints[i] = 10_000 / groupSize + (i < 10_000 % groupSize ? 1 : 0);
+        }
+        SplitResult result = new SplitResult();
+        int iterations = Math.max(10, 3_000_000 / groupSize);
+        for (SplitType splitType : SplitType.values()) {
+            SplitStrategy strategy = SplitStrategyFactory.getSplitStrategy(splitType);
+            long[] values = splitType == SplitType.PERCENTAGE ? basisPoints : exactValues;
+            measure("split " + splitType, groupSize, iterations, iteration -> {
+                result.clear();
+                strategy.split(amountCents, userIndexes, groupSize, values, result);
+            });
+        }
+    }
+
+    // Each expense is split between min(groupSize, 100) members, rotating through the group
+    private static void benchmarkSplitExpenses(int groupSize) {
+        List<String> userIds = memberIds(groupSize);
+        SplitwiseGroup group = createGroup(userIds);
+        int participantCount = Math.min(groupSize, 100);
+        List<List<String>> participantSets = new ArrayList<>();
+        for (int start = 0; start < groupSize; start += participantCount) {
+            List<String> participants = new ArrayList<>();
+            for (int i = 0; i < participantCount; i++) {
+                participants.add(userIds.get((start + i) % groupSize));
+            }
+            participantSets.add(participants);
+        }
+        int iterations = Math.max(100, 2_000_000 / participantCount);
+        measure("splitExpenses EQUAL", groupSize, iterations, iteration -> {
+            List<String> participants = participantSets.get(iteration % participantSets.size());
+            group.splitExpenses("E", participants.get(0), 123.45, participants, SplitType.EQUAL, null);
+        });
+    }
+
+    // A 50-member group with the given number of 3-way expenses; lookups are for one member
+    private static void benchmarkSettlement(int historyLength) {
+        List<String> userIds = memberIds(50);
+        SplitwiseGroup group = createGroup(userIds);
+        Random random = new Random(historyLength);
+        for (int i = 0; i < historyLength; i++) {
+            int payer = random.nextInt(userIds.size());
+            List<String> participants = Arrays.asList(userIds.get(payer), userIds.get((payer + 1) % userIds.size()), userIds.get((payer + 7) % userIds.size()));
+            group.splitExpenses("E" + i, userIds.get(payer), 10.0, participants, SplitType.EQUAL, null);
+        }
+        String userId = userIds.get(0);
+        measure("showAmountSettlementDetailsForUser", historyLength, 20_000, iteration -> group.showAmountSettlementDetailsForUser(userId));
+        measure("settlement full scan", historyLength, Math.max(3, 10_000_000 / historyLength / 10), iteration -> group.computeSettlementDetailsByScan(userId));
+    }
+
+    private static void benchmarkSettleUp(int groupSize) {
+        List<String> userIds = memberIds(groupSize);
+        SplitwiseGroup group = createGroup(userIds);
+        for (int i = 0; i < groupSize; i++) {
+            group.splitExpenses("E" + i, userIds.get(i), 1 + i % 97, Arrays.asList(userIds.get(i), userIds.get((i + 1) % groupSize)), SplitType.EQUAL, null);
+        }
+        int iterations = Math.max(5, 1_000_000 / groupSize);
+        // a no-op expense bumps the version so every call recomputes instead of hitting the cache
+        measure("settleUp", groupSize, iterations, iteration -> {
+            group.splitExpenses("N", userIds.get(0), 0, Collections.singletonList(userIds.get(0)), SplitType.EQUAL, null);
+            group.settleUp();
+        });
+    }
+
+    private static void measure(String name, long param, int iterations, Operation operation) {
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            for (int i = 0; i < iterations; i++) {
+                operation.run(i);
+            }
+        }
+        long threadId = Thread.currentThread().getId();
+        long bestNanos = Long.MAX_VALUE;
+        long allocatedBytes = 0;
+        for (int round = 0; round < MEASURED_ROUNDS; round++) {
+            long allocatedBefore = THREADS.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                operation.run(i);
+            }
+            bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+            allocatedBytes += THREADS.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        }
+        System.out.printf("%-40s %12d %14.1f %12d%n", name, param, (double) bestNanos / iterations,
+                allocatedBytes / ((long) iterations * MEASURED_ROUNDS));
+    }
+
+    private static List<String> memberIds(int count) {
+        List<String> userIds = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            userIds.add("U" + i);
+        }
+        return userIds;
+    }
+
+    private static SplitwiseGroup createGroup(List<String> userIds) {
+        SplitwiseGroup group = new SplitwiseGroup("B", "Benchmark");
+        for (String userId : userIds) {
+            group.addUser(new User(userId, userId));
+        }
+        return group;
     }
 }